@@ -160,6 +160,52 @@ public class AsyncGetTest extends AndroidTestCase
 		signal.await(1500, TimeUnit.MILLISECONDS);
 	}
 
+	/**
+	 * Tests deflate response is decoded once and reports both sizes
+	 * @throws InterruptedException
+	 */
+	public void testGetDeflateJson() throws InterruptedException
+	{
+		new AsyncHttpClient("http://httpbin.org/")
+			.get("deflate", new JsonResponseHandler()
+			{
+				@Override public void onFinish()
+				{
+					Assert.assertNotNull(getContent());
+					Assert.assertTrue(getContent() instanceof JsonElement);
+					Assert.assertTrue(getConnectionInfo().responseWireLength > 0);
+					Assert.assertTrue(getConnectionInfo().responseWireLength < getConnectionInfo().responseLength);
+
+					signal.countDown();
+				}
+			});
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tests brotli response is decoded once and reports both sizes
+	 * @throws InterruptedException
+	 */
+	public void testGetBrotliJson() throws InterruptedException
+	{
+		new AsyncHttpClient("http://httpbin.org/")
+			.get("brotli", new JsonResponseHandler()
+			{
+				@Override public void onFinish()
+				{
+					Assert.assertNotNull(getContent());
+					Assert.assertTrue(getContent() instanceof JsonElement);
+					Assert.assertTrue(getConnectionInfo().responseWireLength > 0);
+					Assert.assertTrue(getConnectionInfo().responseWireLength < getConnectionInfo().responseLength);
+
+					signal.countDown();
+				}
+			});
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Tests SSL connection response
 	 * @throws InterruptedException
@@ -3,21 +3,34 @@ package net.callumtaylor.asynchttp;
 import android.test.AndroidTestCase;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
 
 import junit.framework.Assert;
 
+import net.callumtaylor.asynchttp.obj.CompressedRequestBody;
+import net.callumtaylor.asynchttp.obj.ContentEncoding;
+import net.callumtaylor.asynchttp.obj.FileBody;
 import net.callumtaylor.asynchttp.obj.InputStreamBody;
+import net.callumtaylor.asynchttp.obj.JsonBody;
 import net.callumtaylor.asynchttp.response.BasicResponseHandler;
 import net.callumtaylor.asynchttp.response.JsonResponseHandler;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.ByteString;
+import okio.GzipSource;
+import okio.Okio;
 
 /**
  * @author Callum Taylor
@@ -68,9 +81,20 @@ public class AsyncPostTest extends AndroidTestCase
 		new AsyncHttpClient("http://httpbin.org/")
 			.post("post", postBody, new JsonResponseHandler()
 			{
-				@Override public void onByteChunkSent(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+				@Override public boolean observeSentChunks()
+				{
+					return true;
+				}
+
+				@Override public void onByteChunkSent(ByteString chunk, long totalProcessed, long totalLength)
 				{
 					Assert.assertNotNull(chunk);
+					Assert.assertTrue(chunk.size() > 0);
+					Assert.assertEquals(16384, totalLength);
+				}
+
+				@Override public void onByteChunkSent(long chunkLength, long totalProcessed, long totalLength)
+				{
 					Assert.assertTrue(chunkLength > 0);
 					Assert.assertEquals(16384, totalLength);
 				}
@@ -108,9 +132,8 @@ public class AsyncPostTest extends AndroidTestCase
 		new AsyncHttpClient("http://httpbin.org/")
 			.post("post", postBody, new JsonResponseHandler()
 			{
-				@Override public void onByteChunkSent(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+				@Override public void onByteChunkSent(long chunkLength, long totalProcessed, long totalLength)
 				{
-					Assert.assertNotNull(chunk);
 					Assert.assertTrue(chunkLength > 0);
 				}
 
@@ -130,6 +153,39 @@ public class AsyncPostTest extends AndroidTestCase
 		signal.await(1500, TimeUnit.MILLISECONDS);
 	}
 
+	/**
+	 * Tests a range of a file is sent with its length
+	 * @throws Exception
+	 */
+	public void testPostFileRange() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "upload.bin");
+		FileOutputStream stream = new FileOutputStream(file);
+		stream.write(new byte[32768]);
+		stream.close();
+
+		RequestBody postBody = FileBody.create(MediaType.parse("application/octet-stream"), file, 1024, 16384);
+
+		new AsyncHttpClient("http://httpbin.org/")
+			.post("post", postBody, new JsonResponseHandler()
+			{
+				@Override public void onByteChunkSentProcessed(long totalProcessed, long totalLength)
+				{
+					Assert.assertEquals(16384, totalLength);
+				}
+
+				@Override public void onFinish()
+				{
+					Assert.assertNotNull(getContent());
+					Assert.assertEquals(16384, getConnectionInfo().connectionLength);
+
+					signal.countDown();
+				}
+			});
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Tests response parses correctly from json
 	 * @throws InterruptedException
@@ -153,6 +209,94 @@ public class AsyncPostTest extends AndroidTestCase
 		signal.await(1500, TimeUnit.MILLISECONDS);
 	}
 
+	/**
+	 * Tests a json element body is written in full with its content length, as a string body would be
+	 * @throws Exception
+	 */
+	public void testJsonBodyLength() throws Exception
+	{
+		JsonObject json = new JsonObject();
+		json.addProperty("test", "h\u00e9llo world");
+		json.add("empty", JsonNull.INSTANCE);
+
+		RequestBody stringBody = RequestBody.create(MediaType.parse("application/json"), json.toString());
+		RequestBody postBody = JsonBody.create(json);
+
+		Buffer written = new Buffer();
+		postBody.writeTo(written);
+
+		Assert.assertEquals(json.toString(), written.readUtf8());
+		Assert.assertEquals(stringBody.contentLength(), postBody.contentLength());
+		Assert.assertEquals(stringBody.contentType(), postBody.contentType());
+	}
+
+	/**
+	 * Tests a compressed body is sent with its content encoding and progress for both sizes
+	 * @throws InterruptedException
+	 */
+	public void testPostCompressed() throws InterruptedException
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (int index = 0; index < 1000; index++)
+		{
+			json.append(index > 0 ? "," : "").append("{\"test\":\"hello world\"}");
+		}
+		json.append("]");
+
+		RequestBody postBody = CompressedRequestBody.wrap(RequestBody.create(MediaType.parse("application/json"), json.toString()), ContentEncoding.GZIP);
+
+		new AsyncHttpClient("http://httpbin.org/")
+			.post("post", postBody, new JsonResponseHandler()
+			{
+				@Override public void onUncompressedBytesSent(long totalProcessed, long totalLength)
+				{
+					Assert.assertTrue(totalProcessed <= totalLength);
+				}
+
+				@Override public void onFinish()
+				{
+					Assert.assertNotNull(getContent());
+					Assert.assertEquals("gzip", getContent().getAsJsonObject().get("headers").getAsJsonObject().get("Content-Encoding").getAsString());
+					Assert.assertTrue(getConnectionInfo().connectionLength < getConnectionInfo().connectionUncompressedLength);
+
+					signal.countDown();
+				}
+			});
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tests a stream whose length is only estimated is compressed, and a small body of exact length is not
+	 * @throws Exception
+	 */
+	public void testCompressedStreamBody() throws Exception
+	{
+		final byte[] data = new byte[65536];
+		Arrays.fill(data, (byte)'a');
+
+		// like most network and pipe streams, available() does not know the length
+		InputStream stream = new ByteArrayInputStream(data)
+		{
+			@Override public synchronized int available()
+			{
+				return 0;
+			}
+		};
+
+		RequestBody postBody = CompressedRequestBody.wrap(InputStreamBody.create(MediaType.parse("application/octet-stream"), stream), ContentEncoding.GZIP);
+		Assert.assertTrue(postBody instanceof CompressedRequestBody);
+		Assert.assertEquals(-1, ((CompressedRequestBody)postBody).uncompressedLength());
+
+		Buffer compressed = new Buffer();
+		postBody.writeTo(compressed);
+		Assert.assertTrue(compressed.size() < data.length);
+		Assert.assertTrue(Arrays.equals(data, Okio.buffer(new GzipSource(compressed)).readByteArray()));
+
+		RequestBody smallBody = RequestBody.create(MediaType.parse("text/plain"), "small");
+		Assert.assertSame(smallBody, CompressedRequestBody.wrap(smallBody, ContentEncoding.GZIP));
+	}
+
 	/**
 	 * Tests 404 response
 	 * @throws InterruptedException
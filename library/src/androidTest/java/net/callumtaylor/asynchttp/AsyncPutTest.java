@@ -64,9 +64,8 @@ public class AsyncPutTest extends AndroidTestCase
 		new AsyncHttpClient("http://httpbin.org/")
 			.put("put", putBody, new JsonResponseHandler()
 			{
-				@Override public void onByteChunkSent(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+				@Override public void onByteChunkSent(long chunkLength, long totalProcessed, long totalLength)
 				{
-					Assert.assertNotNull(chunk);
 					Assert.assertTrue(chunkLength > 0);
 					Assert.assertEquals(16384, totalLength);
 				}
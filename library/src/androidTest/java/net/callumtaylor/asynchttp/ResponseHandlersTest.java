@@ -1,18 +1,75 @@
 package net.callumtaylor.asynchttp;
 
 import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
+import com.google.gson.JsonElement;
 import com.google.gson.annotations.SerializedName;
 
 import junit.framework.Assert;
 
+import net.callumtaylor.asynchttp.obj.BitmapCache;
+import net.callumtaylor.asynchttp.obj.BitmapPool;
+import net.callumtaylor.asynchttp.obj.DoubleArray;
+import net.callumtaylor.asynchttp.obj.LongArray;
+import net.callumtaylor.asynchttp.obj.MemoryBudget;
+import net.callumtaylor.asynchttp.obj.NumericColumns;
+import net.callumtaylor.asynchttp.obj.RequestMode;
+import net.callumtaylor.asynchttp.obj.SpillBuffer;
 import net.callumtaylor.asynchttp.response.BitmapResponseHandler;
+import net.callumtaylor.asynchttp.response.ByteArrayResponseHandler;
+import net.callumtaylor.asynchttp.response.CacheResponseHandler;
+import net.callumtaylor.asynchttp.response.DigestResponseHandler;
 import net.callumtaylor.asynchttp.response.GsonResponseHandler;
+import net.callumtaylor.asynchttp.response.JSONArrayResponseHandler;
+import net.callumtaylor.asynchttp.response.JSONObjectResponseHandler;
+import net.callumtaylor.asynchttp.response.JsonArrayStreamResponseHandler;
+import net.callumtaylor.asynchttp.response.JsonPathResponseHandler;
 import net.callumtaylor.asynchttp.response.JsonResponseHandler;
+import net.callumtaylor.asynchttp.response.NdjsonResponseHandler;
+import net.callumtaylor.asynchttp.response.NumericArrayResponseHandler;
+import net.callumtaylor.asynchttp.response.SegmentedCacheResponseHandler;
+import net.callumtaylor.asynchttp.response.SpillResponseHandler;
+import net.callumtaylor.asynchttp.response.StreamResponseHandler;
+import net.callumtaylor.asynchttp.response.StringResponseHandler;
+import net.callumtaylor.asynchttp.response.TeeResponseHandler;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Headers;
+import okhttp3.Request;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
 
 /**
  * @author Callum Taylor
@@ -69,10 +126,88 @@ public class ResponseHandlersTest extends AndroidTestCase
 		signal.await(1500, TimeUnit.MILLISECONDS);
 	}
 
+	/**
+	 * Tests gson response handler correctly serialises when downloading and parsing in parallel
+	 * @throws InterruptedException
+	 */
+	public void testGsonResponseHandlerPipelined() throws InterruptedException
+	{
+		GsonResponseHandler<HttpBinResponse> handler = new GsonResponseHandler<HttpBinResponse>(HttpBinResponse.class)
+		{
+			@Override public void onFinish()
+			{
+				Assert.assertNotNull(getContent());
+				Assert.assertEquals("http://httpbin.org/get", getContent().url);
+				Assert.assertNotNull(getContent().headers);
+
+				signal.countDown();
+			}
+		};
+		handler.setPipelined(true);
+
+		new AsyncHttpClient("http://httpbin.org/").get("get", handler);
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Tests json response handler correctly serialises
 	 * @throws InterruptedException
 	 */
+	public void testStreamResponseHandlerPipelinedTeardown() throws Exception
+	{
+		Buffer data = new Buffer();
+		for (int index = 0; index < 100000; index++)
+		{
+			data.writeUtf8("[" + index + "]\n");
+		}
+
+		final AtomicInteger reads = new AtomicInteger();
+		BufferedSource source = Okio.buffer(new ForwardingSource(data)
+		{
+			@Override public long read(Buffer sink, long byteCount) throws IOException
+			{
+				reads.incrementAndGet();
+				return super.read(sink, Math.min(byteCount, 1024));
+			}
+		});
+
+		// a subclass which stops parsing early and never closes the reader
+		StreamResponseHandler<String> handler = new StreamResponseHandler<String>()
+		{
+			private String content;
+
+			@Override public void generateContent()
+			{
+				try
+				{
+					content = String.valueOf((char)reader.read());
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+
+			@Override public String getContent()
+			{
+				return content;
+			}
+		};
+		handler.setPipelined(true);
+		handler.onReceiveSource(source, new ClientExecutorTask<String>(RequestMode.GET, null, null, null, handler, true, false, 0), -1);
+		handler.generateContent();
+		handler.onReleaseBuffers();
+
+		// the pipeline thread has stopped, so the source can be closed
+		int readCount = reads.get();
+		Thread.sleep(100);
+
+		Assert.assertEquals("[", handler.getContent());
+		Assert.assertEquals(readCount, reads.get());
+		Assert.assertTrue(data.size() > 0);
+	}
+
 	public void testJsonResponseHandler() throws InterruptedException
 	{
 		new AsyncHttpClient("http://httpbin.org/")
@@ -121,4 +256,1600 @@ public class ResponseHandlersTest extends AndroidTestCase
 
 		signal.await(1500, TimeUnit.MILLISECONDS);
 	}
+
+	/**
+	 * Tests a large image is downsampled to the target size while it is decoded
+	 * @throws Exception
+	 */
+	public void testBitmapResponseHandlerDownsample() throws Exception
+	{
+		Bitmap original = Bitmap.createBitmap(4000, 3000, Bitmap.Config.ARGB_8888);
+		original.eraseColor(Color.RED);
+
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		original.compress(Bitmap.CompressFormat.JPEG, 90, image);
+		original.recycle();
+
+		byte[] data = image.toByteArray();
+
+		// an unknown length decodes from the buffer segments rather than a single array
+		for (long totalLength : new long[]{data.length, -1})
+		{
+			BitmapResponseHandler handler = new BitmapResponseHandler(200, 200, Bitmap.Config.RGB_565);
+			for (int offset = 0; offset < data.length; offset += 8192)
+			{
+				int length = Math.min(8192, data.length - offset);
+				handler.onByteChunkReceived(Arrays.copyOfRange(data, offset, offset + length), length, offset, totalLength);
+			}
+
+			handler.onByteChunkReceived(null, data.length, data.length, data.length);
+			handler.generateContent();
+
+			Assert.assertEquals(500, handler.getContent().getWidth());
+			Assert.assertEquals(375, handler.getContent().getHeight());
+			Assert.assertEquals(Bitmap.Config.RGB_565, handler.getContent().getConfig());
+		}
+
+		Assert.assertEquals(1, BitmapResponseHandler.calculateSampleSize(4000, 3000, 0, 0));
+		Assert.assertEquals(1, BitmapResponseHandler.calculateSampleSize(100, 100, 200, 200));
+		Assert.assertEquals(8, BitmapResponseHandler.calculateSampleSize(4000, 3000, 200, 200));
+		Assert.assertEquals(16, BitmapResponseHandler.calculateSampleSize(4000, 3000, 200, 0));
+		Assert.assertEquals(4, BitmapResponseHandler.calculateSampleSize(4000, 3000, 0, 600));
+	}
+
+	/**
+	 * Tests the bitmap cache removes the least recently used bitmaps, and makes handlers loading the same
+	 * image wait for the first one
+	 * @throws Exception
+	 */
+	public void testBitmapCache() throws Exception
+	{
+		final BitmapCache cache = new BitmapCache(3 * 100 * 100 * 4);
+		Bitmap[] bitmaps = new Bitmap[4];
+		for (int index = 0; index < bitmaps.length; index++)
+		{
+			bitmaps[index] = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+		}
+
+		cache.put("a", bitmaps[0]);
+		cache.put("b", bitmaps[1]);
+		cache.put("c", bitmaps[2]);
+		cache.get("a");
+		cache.put("d", bitmaps[3]);
+
+		Assert.assertNull(cache.get("b"));
+		Assert.assertSame(bitmaps[0], cache.get("a"));
+		Assert.assertEquals(3 * 100 * 100 * 4, cache.getSize());
+
+		Assert.assertNull(cache.getOrStartLoading("e"));
+
+		final Bitmap[] waited = new Bitmap[1];
+		Thread waiter = new Thread(new Runnable()
+		{
+			@Override public void run()
+			{
+				try
+				{
+					waited[0] = cache.getOrStartLoading("e");
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+		waiter.start();
+
+		Bitmap loaded = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+		cache.finishLoading("e", loaded);
+		waiter.join(1500);
+
+		Assert.assertSame(loaded, waited[0]);
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+	}
+
+	/**
+	 * Tests a handler waiting for another to load the same image gives up after the load timeout and loads it itself
+	 * @throws Exception
+	 */
+	public void testBitmapCacheLoadTimeout() throws Exception
+	{
+		BitmapCache cache = new BitmapCache(1024);
+		cache.setLoadTimeout(100);
+
+		Assert.assertNull(cache.getOrStartLoading("a"));
+
+		long start = System.currentTimeMillis();
+		Assert.assertNull(cache.getOrStartLoading("a"));
+		Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+		Assert.assertEquals(2, cache.getMissCount());
+
+		// the key is loading until both handlers have finished
+		cache.finishLoading("a", null);
+		cache.finishLoading("a", null);
+
+		start = System.currentTimeMillis();
+		Assert.assertNull(cache.getOrStartLoading("a"));
+		Assert.assertTrue(System.currentTimeMillis() - start < 100);
+		cache.finishLoading("a", null);
+	}
+
+	/**
+	 * Tests bitmaps handed out by the cache are only put in the pool once they are evicted and released by every
+	 * handler using them
+	 * @throws Exception
+	 */
+	public void testBitmapCacheRelease() throws Exception
+	{
+		final List<Bitmap> pooled = new ArrayList<>();
+		BitmapPool pool = new BitmapPool(1024 * 1024)
+		{
+			@Override public synchronized void put(Bitmap bitmap)
+			{
+				pooled.add(bitmap);
+				super.put(bitmap);
+			}
+		};
+
+		BitmapCache cache = new BitmapCache(100 * 100 * 4, pool);
+		Bitmap shared = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+
+		Assert.assertNull(cache.getOrStartLoading("a"));
+		cache.finishLoading("a", shared);
+		Assert.assertSame(shared, cache.getOrStartLoading("a"));
+		Assert.assertEquals(2, cache.getUseCount(shared));
+
+		// a released bitmap which is still cached can be handed out again
+		cache.release(shared);
+		cache.release(shared);
+		Assert.assertTrue(pooled.isEmpty());
+		Assert.assertSame(shared, cache.get("a"));
+
+		// an evicted bitmap which is still in use is only pooled once it is released
+		cache.put("b", Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+		Assert.assertNull(cache.get("a"));
+		Assert.assertTrue(pooled.isEmpty());
+
+		cache.release(shared);
+		Assert.assertEquals(Arrays.asList(shared), pooled);
+		Assert.assertEquals(0, cache.getUseCount(shared));
+
+		// releasing it again does not pool it twice
+		cache.release(shared);
+		Assert.assertEquals(1, pooled.size());
+	}
+
+	/**
+	 * Tests an image is decoded into a bitmap released from the cache, and the cache no longer hands that bitmap
+	 * out for its old key
+	 * @throws Exception
+	 */
+	public void testBitmapResponseHandlerReusesReleasedBitmap() throws Exception
+	{
+		ByteArrayOutputStream image = new ByteArrayOutputStream();
+		Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888).compress(Bitmap.CompressFormat.PNG, 100, image);
+		byte[] data = image.toByteArray();
+
+		BitmapPool pool = new BitmapPool(1024 * 1024);
+		BitmapCache cache = new BitmapCache(100 * 100 * 4, pool);
+
+		Bitmap first = loadBitmap(cache, "a", data);
+		Assert.assertNotNull(first);
+		Assert.assertSame(first, loadBitmap(cache, "a", data));
+		cache.release(first);
+		cache.release(first);
+
+		// loading another image evicts the first, which is no longer used so it is pooled
+		Bitmap second = loadBitmap(cache, "b", data);
+		Assert.assertNotSame(first, second);
+		Assert.assertNull(cache.get("a"));
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+		{
+			Assert.assertEquals(BitmapPool.getSize(first), pool.getSize());
+
+			Bitmap third = loadBitmap(cache, "c", data);
+			Assert.assertSame(first, third);
+			Assert.assertSame(third, cache.get("c"));
+			Assert.assertNull(cache.get("a"));
+		}
+	}
+
+	/**
+	 * Loads an image through a bitmap handler, from the cache if it is there
+	 */
+	private Bitmap loadBitmap(BitmapCache cache, String url, byte[] data) throws Exception
+	{
+		BitmapResponseHandler handler = new BitmapResponseHandler(0, 0, null, cache);
+		handler.getConnectionInfo().connectionUrl = url;
+
+		if (!handler.onLoadCachedContent())
+		{
+			handler.onReceiveSource(new Buffer().write(data), new ClientExecutorTask<Bitmap>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+			handler.generateContent();
+		}
+
+		return handler.getContent();
+	}
+
+	/**
+	 * Tests handlers which wrap others ask them for their cached content
+	 * @throws Exception
+	 */
+	public void testWrappedHandlersLoadCachedContent() throws Exception
+	{
+		final byte[] data = "cached".getBytes("UTF-8");
+		final AtomicInteger loads = new AtomicInteger(0);
+
+		ByteArrayResponseHandler cached = new ByteArrayResponseHandler()
+		{
+			@Override public boolean onLoadCachedContent()
+			{
+				loads.incrementAndGet();
+				return true;
+			}
+
+			@Override public byte[] getContent()
+			{
+				return data;
+			}
+		};
+
+		DigestResponseHandler<byte[]> digest = new DigestResponseHandler<>(cached, DigestResponseHandler.Algorithm.MD5);
+		Assert.assertTrue(digest.onLoadCachedContent());
+		Assert.assertSame(data, digest.getContent());
+
+		TeeResponseHandler tee = new TeeResponseHandler(cached, digest);
+		Assert.assertTrue(tee.onLoadCachedContent());
+		Assert.assertEquals(Arrays.<Object>asList(data, data), tee.getContent());
+
+		// every handler is still asked, even though the request has to be made for the string handler
+		loads.set(0);
+		tee = new TeeResponseHandler(new StringResponseHandler(), cached);
+		Assert.assertFalse(tee.onLoadCachedContent());
+		Assert.assertEquals(1, loads.get());
+	}
+
+	/**
+	 * Tests two requests for the same image at once only download it once
+	 * @throws InterruptedException
+	 */
+	public void testBitmapResponseHandlerCache() throws InterruptedException
+	{
+		final CountDownLatch finished = new CountDownLatch(2);
+		final BitmapCache cache = new BitmapCache(4 * 1024 * 1024, new BitmapPool(1024 * 1024));
+		final List<Bitmap> bitmaps = new ArrayList<>();
+
+		for (int index = 0; index < 2; index++)
+		{
+			new AsyncHttpClient("http://httpbin.org/")
+				.get("image/png", new BitmapResponseHandler(50, 50, null, cache)
+				{
+					@Override public void onFinish()
+					{
+						bitmaps.add(getContent());
+						finished.countDown();
+					}
+				});
+		}
+
+		finished.await(1500, TimeUnit.MILLISECONDS);
+
+		Assert.assertEquals(2, bitmaps.size());
+		Assert.assertNotNull(bitmaps.get(0));
+		Assert.assertSame(bitmaps.get(0), bitmaps.get(1));
+		Assert.assertEquals(1, cache.getMissCount());
+		Assert.assertEquals(1, cache.getHitCount());
+	}
+
+	/**
+	 * Tests the segmented cache response handler downloads the whole file
+	 * @throws InterruptedException
+	 */
+	public void testSegmentedCacheResponseHandler() throws InterruptedException
+	{
+		final File file = new File(getContext().getCacheDir(), "segmented.bin");
+
+		new AsyncHttpClient("http://httpbin.org/")
+			.get("range/102400", new SegmentedCacheResponseHandler(file.getAbsolutePath(), 4)
+			{
+				@Override public void onByteChunkReceivedProcessed(long totalProcessed, long totalLength)
+				{
+					Assert.assertEquals(102400, totalLength);
+				}
+
+				@Override public void onFinish()
+				{
+					Assert.assertEquals(206, getConnectionInfo().responseCode);
+					Assert.assertEquals(102400, getContent().length());
+
+					signal.countDown();
+				}
+			});
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tests the segmented cache response handler splits a large file into segments and writes each at its offset
+	 * @throws Exception
+	 */
+	public void testSegmentedCacheResponseHandlerSegments() throws Exception
+	{
+		byte[] data = new byte[1024 * 1536];
+		new Random(39).nextBytes(data);
+
+		File file = new File(getContext().getCacheDir(), "segments.bin");
+		RangeServer server = new RangeServer(data);
+
+		try
+		{
+			SegmentedCacheResponseHandler handler = new SegmentedCacheResponseHandler(file.getAbsolutePath(), 4);
+			handler.getConnectionInfo().connectionUrl = server.getUrl();
+			handler.getConnectionInfo().responseCode = 206;
+			handler.getConnectionInfo().responseHeaders = Headers.of("ETag", "\"segments\"", "Content-Range", "bytes 0-" + (data.length - 1) + "/" + data.length);
+
+			// the first segment is read from the open response, the other two are requested
+			Buffer source = new Buffer().write(data);
+			handler.onReceiveSource(source, new ClientExecutorTask<File>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+
+			byte[] saved = new byte[data.length];
+			DataInputStream stream = new DataInputStream(new FileInputStream(file));
+			stream.readFully(saved);
+			stream.close();
+
+			Assert.assertTrue(Arrays.equals(data, saved));
+			Assert.assertFalse(new File(file.getAbsolutePath() + ".part").exists());
+			Assert.assertEquals(2, server.requestCount.get());
+			Assert.assertEquals(data.length, handler.getConnectionInfo().responseLength);
+		}
+		finally
+		{
+			server.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests a failed segment stops the other segments instead of leaving them to retry
+	 * @throws Exception
+	 */
+	public void testSegmentedCacheResponseHandlerSegmentFails() throws Exception
+	{
+		byte[] data = new byte[1024 * 1536];
+		long segmentSize = data.length / 3;
+
+		File file = new File(getContext().getCacheDir(), "segments.bin");
+		File partFile = new File(file.getAbsolutePath() + ".part");
+		RangeServer server = new RangeServer(data);
+		server.failFrom = segmentSize;
+		server.hangFrom = segmentSize * 2;
+
+		FileOutputStream existing = new FileOutputStream(file);
+		existing.write("old".getBytes("UTF-8"));
+		existing.close();
+
+		try
+		{
+			SegmentedCacheResponseHandler handler = new SegmentedCacheResponseHandler(file.getAbsolutePath(), 4);
+			handler.getConnectionInfo().connectionUrl = server.getUrl();
+			handler.getConnectionInfo().responseCode = 206;
+			handler.getConnectionInfo().responseHeaders = Headers.of("ETag", "\"segments\"", "Content-Range", "bytes 0-" + (data.length - 1) + "/" + data.length);
+
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				Buffer source = new Buffer().write(data);
+				handler.onReceiveSource(source, new ClientExecutorTask<File>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+				Assert.fail("The failed segment should fail the download");
+			}
+			catch (IOException e)
+			{
+				Assert.assertTrue(e.getMessage().contains("500"));
+			}
+
+			// the hanging segment is cancelled and has stopped by the time the download returns, rather than
+			// waiting for its read timeout and being retried
+			Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+			Assert.assertTrue(server.hangClosed.await(1000, TimeUnit.MILLISECONDS));
+			Assert.assertTrue(server.requestCount.get() <= 5);
+
+			// the existing file is left alone and the partly written segments are removed
+			Assert.assertEquals(3, file.length());
+			Assert.assertFalse(partFile.exists());
+		}
+		finally
+		{
+			server.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests the tee response handler caches and parses the same response
+	 * @throws InterruptedException
+	 */
+	public void testTeeResponseHandler() throws InterruptedException
+	{
+		final File file = new File(getContext().getCacheDir(), "tee.json");
+		final CacheResponseHandler cache = new CacheResponseHandler(file.getAbsolutePath());
+		final GsonResponseHandler<HttpBinResponse> parser = new GsonResponseHandler<>(HttpBinResponse.class);
+
+		new AsyncHttpClient("http://httpbin.org/")
+			.get("get", new TeeResponseHandler(cache, parser)
+			{
+				@Override public void onFinish()
+				{
+					Assert.assertNotNull(parser.getContent());
+					Assert.assertNotNull(parser.getContent().url);
+					Assert.assertEquals(getConnectionInfo().responseLength, cache.getContent().length());
+
+					signal.countDown();
+				}
+			});
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tests the tee response handler gives handlers which read the source their own source, and the others chunks
+	 * @throws Exception
+	 */
+	public void testTeeResponseHandlerReadsSource() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "tee.json");
+		byte[] data = "{\"url\":\"http://httpbin.org/get\"}".getBytes("UTF-8");
+
+		CacheResponseHandler cache = new CacheResponseHandler(file.getAbsolutePath());
+		GsonResponseHandler<HttpBinResponse> parser = new GsonResponseHandler<>(HttpBinResponse.class);
+		StringResponseHandler string = new StringResponseHandler();
+		DigestResponseHandler<String> digest = new DigestResponseHandler<>(new StringResponseHandler(), DigestResponseHandler.Algorithm.MD5, ByteString.of(data).md5().hex());
+
+		Assert.assertTrue(cache.readsSource());
+		Assert.assertTrue(parser.readsSource());
+		Assert.assertFalse(string.readsSource());
+		Assert.assertFalse(digest.readsSource());
+
+		TeeResponseHandler handler = new TeeResponseHandler(cache, parser, string, digest);
+		handler.getConnectionInfo().responseCode = 200;
+
+		Buffer source = new Buffer().write(data);
+		handler.onReceiveSource(source, new ClientExecutorTask<List<Object>>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+		handler.generateContent();
+		handler.onReleaseBuffers();
+
+		Assert.assertNull(handler.getConnectionInfo().responseError);
+		Assert.assertEquals(data.length, file.length());
+		Assert.assertEquals("http://httpbin.org/get", parser.getContent().url);
+		Assert.assertEquals(new String(data, "UTF-8"), string.getContent());
+		Assert.assertTrue(digest.isVerified());
+
+		file.delete();
+	}
+
+	/**
+	 * Tests the spill response handler moves a large response to a file
+	 * @throws InterruptedException
+	 */
+	public void testSpillResponseHandler() throws InterruptedException
+	{
+		new AsyncHttpClient("http://httpbin.org/")
+			.get("stream-bytes/102400", new SpillResponseHandler(getContext().getCacheDir(), 16384)
+			{
+				@Override public void onFinish()
+				{
+					Assert.assertNotNull(getContent());
+					Assert.assertTrue(getContent().isSpilled());
+					Assert.assertEquals(102400, getContent().size());
+
+					getContent().release();
+					Assert.assertFalse(getContent().getFile().exists());
+
+					signal.countDown();
+				}
+			});
+
+		signal.await(1500, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tests the string response handler decodes characters which are split across chunks
+	 * @throws Exception
+	 */
+	public void testStringResponseHandlerSplitCharacters() throws Exception
+	{
+		String expected = "h\u00e9llo w\u00f6rld \u2713 \ud834\udd1e";
+		byte[] data = expected.getBytes("UTF-8");
+
+		StringResponseHandler handler = new StringResponseHandler();
+		for (int index = 0; index < data.length; index++)
+		{
+			handler.onByteChunkReceived(new byte[]{data[index]}, 1, index, data.length);
+		}
+
+		handler.onByteChunkReceived(null, data.length, data.length, data.length);
+		handler.generateContent();
+
+		Assert.assertEquals(expected, handler.getContent());
+	}
+
+	/**
+	 * Tests the JSONObject handler parses values into the same types as org.json
+	 * @throws Exception
+	 */
+	public void testByteArrayResponseHandlerSource() throws Exception
+	{
+		byte[] data = new byte[100000];
+		new Random(7).nextBytes(data);
+
+		// the declared length is exact, too short, and unknown
+		for (long declaredLength : new long[]{data.length, 1000, -1})
+		{
+			Buffer source = new Buffer().write(data);
+			ByteArrayResponseHandler handler = new ByteArrayResponseHandler();
+			handler.onReceiveSource(source, new ClientExecutorTask<byte[]>(RequestMode.GET, null, null, null, handler, true, false, 0), declaredLength);
+			handler.generateContent();
+
+			Assert.assertTrue(Arrays.equals(data, handler.getContent()));
+		}
+
+		// subclasses which process the chunks are still passed them
+		final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+		ByteArrayResponseHandler handler = new ByteArrayResponseHandler()
+		{
+			@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+			{
+				super.onByteChunkReceived(chunk, chunkLength, totalProcessed, totalLength);
+
+				if (chunk != null)
+				{
+					chunks.write(chunk, 0, (int)chunkLength);
+				}
+			}
+		};
+
+		Buffer source = new Buffer().write(data);
+		handler.onReceiveSource(source, new ClientExecutorTask<byte[]>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+		handler.generateContent();
+
+		Assert.assertTrue(Arrays.equals(data, handler.getContent()));
+		Assert.assertTrue(Arrays.equals(data, chunks.toByteArray()));
+	}
+
+	/**
+	 * Tests the streaming JSONObject handler parses every kind of value the same way org.json does
+	 * @throws Exception
+	 */
+	public void testJSONObjectResponseHandler() throws Exception
+	{
+		Buffer source = new Buffer().writeUtf8("{\"int\":1,\"long\":5000000000,\"double\":1.5,\"exp\":1e3,\"string\":\"h\u00e9llo\",\"bool\":true,\"null\":null,\"array\":[1,{\"a\":[]}]}");
+
+		JSONObjectResponseHandler handler = new JSONObjectResponseHandler();
+		handler.onReceiveSource(source, new ClientExecutorTask<JSONObject>(RequestMode.GET, null, null, null, handler, true, false, 0), source.size());
+		handler.generateContent();
+
+		JSONObject content = handler.getContent();
+		Assert.assertEquals(1, content.get("int"));
+		Assert.assertEquals(5000000000L, content.get("long"));
+		Assert.assertEquals(1.5, content.get("double"));
+		Assert.assertEquals(1000.0, content.get("exp"));
+		Assert.assertEquals("h\u00e9llo", content.get("string"));
+		Assert.assertEquals(Boolean.TRUE, content.get("bool"));
+		Assert.assertEquals(JSONObject.NULL, content.get("null"));
+		Assert.assertEquals(0, content.getJSONArray("array").getJSONObject(1).getJSONArray("a").length());
+	}
+
+	/**
+	 * Compares the streaming JSONArray handler with collecting the response into a string and parsing it
+	 * with org.json, which is how the handler used to work
+	 * @throws Exception
+	 */
+	public void testJSONArrayResponseHandlerBenchmark() throws Exception
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (int index = 0; index < 20000; index++)
+		{
+			json.append(index == 0 ? "" : ",").append("{\"id\":").append(index).append(",\"name\":\"item ").append(index).append("\",\"price\":").append(index * 0.25).append(",\"tags\":[\"a\",\"b\"],\"active\":true}");
+		}
+		json.append("]");
+		byte[] data = json.toString().getBytes("UTF-8");
+
+		long stringTime = 0;
+		long streamTime = 0;
+		for (int run = 0; run < 5; run++)
+		{
+			long start = System.nanoTime();
+
+			StringBuffer stringBuffer = new StringBuffer(data.length);
+			for (int offset = 0; offset < data.length; offset += 8192)
+			{
+				stringBuffer.append(new String(data, offset, Math.min(8192, data.length - offset), "UTF-8"));
+			}
+			JSONArray expected = new JSONArray(stringBuffer.toString());
+
+			stringTime += System.nanoTime() - start;
+			start = System.nanoTime();
+
+			Buffer source = new Buffer().write(data);
+			JSONArrayResponseHandler handler = new JSONArrayResponseHandler();
+			handler.onReceiveSource(source, new ClientExecutorTask<JSONArray>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+			handler.generateContent();
+
+			streamTime += System.nanoTime() - start;
+
+			Assert.assertEquals(expected.length(), handler.getContent().length());
+			Assert.assertEquals(expected.getJSONObject(19999).toString(), handler.getContent().getJSONObject(19999).toString());
+		}
+
+		Log.i("JSONBenchmark", "string buffer: " + (stringTime / 5000000) + "ms, streaming: " + (streamTime / 5000000) + "ms per " + data.length + " bytes");
+	}
+
+	/**
+	 * Tests the json array stream handler reads elements of a nested array and stops early
+	 * @throws Exception
+	 */
+	public void testJsonArrayStreamResponseHandler() throws Exception
+	{
+		final List<Integer> elements = new ArrayList<>();
+		Buffer source = new Buffer().writeUtf8("{\"meta\":{\"skip\":[1,2]},\"data\":{\"items\":[1,2,3,4,5]}}");
+
+		JsonArrayStreamResponseHandler<Integer> handler = new JsonArrayStreamResponseHandler<Integer>(Integer.class, "data", "items")
+		{
+			@Override public void onElement(Integer element, int index)
+			{
+				elements.add(element);
+
+				if (index == 2)
+				{
+					stop();
+				}
+			}
+		};
+
+		handler.onReceiveSource(source, new ClientExecutorTask<Integer>(RequestMode.GET, null, null, null, handler, true, false, 0), source.size());
+		handler.generateContent();
+
+		Assert.assertTrue(handler.isStopped());
+		Assert.assertEquals(3, (int)handler.getContent());
+		Assert.assertEquals(Arrays.asList(1, 2, 3), elements);
+	}
+
+	/**
+	 * Tests the json path handler keeps only the values at its paths, and stops reading once they are found
+	 * @throws Exception
+	 */
+	public void testJsonPathResponseHandler() throws Exception
+	{
+		StringBuilder json = new StringBuilder("{\"meta\":{\"total\":3,\"skip\":[1,2]},\"data\":{\"owner\":{\"name\":\"callum\"},\"rows\":[{\"id\":1},{\"id\":2}]},\"padding\":[");
+		for (int index = 0; index < 100000; index++)
+		{
+			json.append(index == 0 ? "" : ",").append(index);
+		}
+		json.append("]}");
+
+		Buffer source = new Buffer().writeUtf8(json.toString());
+		long length = source.size();
+
+		JsonPathResponseHandler handler = new JsonPathResponseHandler("$.meta.total", "data.rows[1].id", "data.owner", "data.owner.name");
+		handler.onReceiveSource(source, new ClientExecutorTask<Map<String, JsonElement>>(RequestMode.GET, null, null, null, handler, true, false, 0), length);
+		handler.generateContent();
+
+		Assert.assertTrue(handler.isComplete());
+		Assert.assertEquals(3, (int)handler.get("$.meta.total", Integer.class));
+		Assert.assertEquals(2, handler.get("data.rows[1].id").getAsInt());
+		Assert.assertEquals("callum", handler.get("data.owner.name").getAsString());
+		Assert.assertTrue(handler.get("data.owner").isJsonObject());
+
+		// the padding after the values was never read
+		Assert.assertTrue(handler.getConnectionInfo().responseLength < length / 2);
+
+		source = new Buffer().writeUtf8(json.toString());
+		handler = new JsonPathResponseHandler("meta.total", "missing");
+		handler.onReceiveSource(source, new ClientExecutorTask<Map<String, JsonElement>>(RequestMode.GET, null, null, null, handler, true, false, 0), length);
+		handler.generateContent();
+
+		Assert.assertFalse(handler.isComplete());
+		Assert.assertNull(handler.get("missing"));
+		Assert.assertEquals(length, handler.getConnectionInfo().responseLength);
+	}
+
+	/**
+	 * Tests paths which only differ by the leading $. both find the value and count as found
+	 * @throws Exception
+	 */
+	public void testJsonPathResponseHandlerSamePath() throws Exception
+	{
+		Buffer source = new Buffer().writeUtf8("{\"a\":{\"b\":1},\"c\":2}");
+		long length = source.size();
+
+		JsonPathResponseHandler handler = new JsonPathResponseHandler("a.b", "$.a.b", "c", "c");
+		handler.onReceiveSource(source, new ClientExecutorTask<Map<String, JsonElement>>(RequestMode.GET, null, null, null, handler, true, false, 0), length);
+		handler.generateContent();
+
+		Assert.assertTrue(handler.isComplete());
+		Assert.assertEquals(1, handler.get("a.b").getAsInt());
+		Assert.assertEquals(1, handler.get("$.a.b").getAsInt());
+		Assert.assertEquals(2, handler.get("c").getAsInt());
+	}
+
+	/**
+	 * Tests the numeric array handler reads JSON and CSV rows into primitive columns
+	 * @throws Exception
+	 */
+	public void testNumericArrayResponseHandler() throws Exception
+	{
+		Buffer source = new Buffer().writeUtf8("[[1467331200000, 12.5], [1467331260000, null, \"ignored\"], [-3, 1e2]]");
+		NumericArrayResponseHandler handler = new NumericArrayResponseHandler(NumericColumns.Type.LONG, NumericColumns.Type.DOUBLE);
+		handler.onReceiveSource(source, new ClientExecutorTask<NumericColumns>(RequestMode.GET, null, null, null, handler, true, false, 0), source.size());
+		handler.generateContent();
+
+		NumericColumns columns = handler.getContent();
+		Assert.assertNull(handler.getConnectionInfo().responseError);
+		Assert.assertEquals(3, columns.getRowCount());
+		Assert.assertTrue(Arrays.equals(new long[]{1467331200000L, 1467331260000L, -3}, columns.getLongs(0).toArray()));
+		Assert.assertEquals(12.5, columns.getDouble(0, 1));
+		Assert.assertTrue(Double.isNaN(columns.getDouble(1, 1)));
+		Assert.assertEquals(100.0, columns.getDouble(2, 1));
+
+		source = new Buffer().writeUtf8("[1, 2, 3]");
+		handler = new NumericArrayResponseHandler(NumericColumns.Type.DOUBLE);
+		handler.onReceiveSource(source, new ClientExecutorTask<NumericColumns>(RequestMode.GET, null, null, null, handler, true, false, 0), source.size());
+		handler.generateContent();
+
+		Assert.assertTrue(Arrays.equals(new double[]{1, 2, 3}, handler.getContent().getDoubles(0).toArray()));
+
+		source = new Buffer().writeUtf8("time;value\r\n100;1.5\r\n\r\n\"-200\"; \r\n300;2.5e1");
+		handler = new NumericArrayResponseHandler(NumericArrayResponseHandler.Format.CSV, NumericColumns.Type.LONG, NumericColumns.Type.DOUBLE);
+		handler.setDelimiter(';');
+		handler.setSkipHeader(true);
+		handler.onReceiveSource(source, new ClientExecutorTask<NumericColumns>(RequestMode.GET, null, null, null, handler, true, false, 0), source.size());
+		handler.generateContent();
+
+		columns = handler.getContent();
+		Assert.assertNull(handler.getConnectionInfo().responseError);
+		Assert.assertTrue(Arrays.equals(new long[]{100, -200, 300}, columns.getLongs(0).toArray()));
+		Assert.assertEquals(1.5, columns.getDouble(0, 1));
+		Assert.assertTrue(Double.isNaN(columns.getDouble(1, 1)));
+		Assert.assertEquals(25.0, columns.getDouble(2, 1));
+
+		source = new Buffer().writeUtf8("1,2\n3\n");
+		handler = new NumericArrayResponseHandler(NumericArrayResponseHandler.Format.CSV, NumericColumns.Type.LONG, NumericColumns.Type.LONG);
+		handler.onReceiveSource(source, new ClientExecutorTask<NumericColumns>(RequestMode.GET, null, null, null, handler, true, false, 0), source.size());
+		handler.generateContent();
+
+		Assert.assertNotNull(handler.getConnectionInfo().responseError);
+		Assert.assertEquals(1, handler.getContent().getRowCount());
+	}
+
+	/**
+	 * Tests the primitive arrays behind numeric columns can still grow after being trimmed
+	 * @throws Exception
+	 */
+	public void testNumericArraysGrowAfterTrim() throws Exception
+	{
+		LongArray longs = new LongArray(0);
+		longs.trimToSize();
+		longs.add(1);
+		longs.trimToSize();
+		longs.add(2);
+		Assert.assertTrue(Arrays.equals(new long[]{1, 2}, longs.toArray()));
+
+		DoubleArray doubles = new DoubleArray(0);
+		doubles.trimToSize();
+		doubles.add(1.5);
+		doubles.trimToSize();
+		doubles.add(2.5);
+		Assert.assertTrue(Arrays.equals(new double[]{1.5, 2.5}, doubles.toArray()));
+	}
+
+	/**
+	 * Tests the ndjson handler delivers every record in order when the lines are parsed in parallel, and skips
+	 * blank lines and lines which can not be parsed
+	 * @throws Exception
+	 */
+	public void testNdjsonResponseHandler() throws Exception
+	{
+		Buffer source = new Buffer();
+		for (int index = 0; index < 10000; index++)
+		{
+			source.writeUtf8("{\"id\":" + index + ",\"name\":\"event " + index + "\"}\r\n");
+
+			if (index == 5000)
+			{
+				source.writeUtf8("\n{broken\n");
+			}
+		}
+		source.writeUtf8("{\"id\":10000}");
+
+		final List<Long> ids = new ArrayList<>();
+		final List<Long> errors = new ArrayList<>();
+		NdjsonResponseHandler<JsonElement> handler = new NdjsonResponseHandler<JsonElement>()
+		{
+			@Override public void onRecord(JsonElement record, long index)
+			{
+				ids.add(record.getAsJsonObject().get("id").getAsLong());
+			}
+
+			@Override public boolean onRecordError(Exception e, long index)
+			{
+				errors.add(index);
+				return true;
+			}
+		};
+		handler.setParallelism(4);
+		handler.onReceiveSource(source, new ClientExecutorTask<Long>(RequestMode.GET, null, null, null, handler, true, false, 0), source.size());
+		handler.generateContent();
+
+		Assert.assertEquals(10001, (long)handler.getContent());
+		Assert.assertEquals(Arrays.asList(5001L), errors);
+		for (int index = 0; index < ids.size(); index++)
+		{
+			Assert.assertEquals(index, (long)ids.get(index));
+		}
+	}
+
+	/**
+	 * Tests the cache response handler resumes a partial download with a range request
+	 * @throws Exception
+	 */
+	public void testCacheResponseHandlerResume() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "resume.bin");
+		file.delete();
+		new File(file.getAbsolutePath() + ".part").delete();
+
+		byte[] data = new byte[1000];
+		for (int index = 0; index < data.length; index++)
+		{
+			data[index] = (byte)index;
+		}
+
+		// the first download ends half way through
+		CacheResponseHandler first = new CacheResponseHandler(file.getAbsolutePath(), true);
+		first.getConnectionInfo().connectionUrl = "http://httpbin.org/range/1000";
+		first.onBeforeRequest(new Request.Builder().url(first.getConnectionInfo().connectionUrl));
+		first.getConnectionInfo().responseCode = 200;
+		first.getConnectionInfo().responseHeaders = Headers.of("ETag", "\"range\"", "Content-Length", "1000");
+
+		Buffer source = new Buffer().write(data, 0, 500);
+		first.onReceiveSource(source, new ClientExecutorTask<File>(RequestMode.GET, null, null, null, first, true, false, 0), 1000);
+
+		Assert.assertFalse(file.exists());
+		Assert.assertEquals(500, new File(file.getAbsolutePath() + ".part").length());
+
+		CacheResponseHandler second = new CacheResponseHandler(file.getAbsolutePath(), true);
+		second.getConnectionInfo().connectionUrl = first.getConnectionInfo().connectionUrl;
+
+		Request.Builder request = new Request.Builder().url(second.getConnectionInfo().connectionUrl);
+		second.onBeforeRequest(request);
+
+		Assert.assertEquals("bytes=500-", request.build().header("Range"));
+		Assert.assertEquals("\"range\"", request.build().header("If-Range"));
+
+		second.getConnectionInfo().responseCode = 206;
+		second.getConnectionInfo().responseHeaders = Headers.of("ETag", "\"range\"", "Content-Range", "bytes 500-999/1000");
+
+		source = new Buffer().write(data, 500, 500);
+		second.onReceiveSource(source, new ClientExecutorTask<File>(RequestMode.GET, null, null, null, second, true, false, 0), 500);
+
+		byte[] saved = new byte[1000];
+		DataInputStream stream = new DataInputStream(new FileInputStream(file));
+		stream.readFully(saved);
+		stream.close();
+
+		Assert.assertTrue(Arrays.equals(data, saved));
+		Assert.assertFalse(new File(file.getAbsolutePath() + ".meta").exists());
+	}
+
+	/**
+	 * Tests a refused resume clears the part and meta files, keeping a part which was already complete
+	 * @throws Exception
+	 */
+	public void testCacheResponseHandlerResumeRefused() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "refused.bin");
+		File partFile = new File(file.getAbsolutePath() + ".part");
+		File metaFile = new File(file.getAbsolutePath() + ".meta");
+		String url = "http://httpbin.org/range/1000";
+
+		// the part was written in full, but the app stopped before it was renamed
+		for (int partLength : new int[]{1000, 500})
+		{
+			file.delete();
+
+			FileOutputStream stream = new FileOutputStream(partFile);
+			stream.write(new byte[partLength]);
+			stream.close();
+
+			Properties meta = new Properties();
+			meta.setProperty("url", url);
+			meta.setProperty("validator", "\"range\"");
+			meta.setProperty("length", "1000");
+
+			stream = new FileOutputStream(metaFile);
+			meta.store(stream, null);
+			stream.close();
+
+			CacheResponseHandler handler = new CacheResponseHandler(file.getAbsolutePath(), true);
+			handler.getConnectionInfo().connectionUrl = url;
+
+			Request.Builder request = new Request.Builder().url(url);
+			handler.onBeforeRequest(request);
+			Assert.assertEquals("bytes=" + partLength + "-", request.build().header("Range"));
+
+			handler.getConnectionInfo().responseCode = 416;
+			handler.beforeResponse();
+
+			// a complete part is kept, anything else is cleared so the next request does not send the range again
+			Assert.assertEquals(partLength == 1000, file.exists());
+			Assert.assertFalse(partFile.exists());
+			Assert.assertFalse(metaFile.exists());
+		}
+
+		// an invalid length header does not stop the response being saved
+		CacheResponseHandler handler = new CacheResponseHandler(file.getAbsolutePath(), true);
+		handler.getConnectionInfo().connectionUrl = url;
+		handler.onBeforeRequest(new Request.Builder().url(url));
+		handler.getConnectionInfo().responseCode = 200;
+		handler.getConnectionInfo().responseHeaders = Headers.of("ETag", "\"range\"", "Content-Length", "unknown");
+
+		Buffer source = new Buffer().write(new byte[1000]);
+		handler.onReceiveSource(source, new ClientExecutorTask<File>(RequestMode.GET, null, null, null, handler, true, false, 0), -1);
+
+		Assert.assertNull(handler.getConnectionInfo().responseError);
+		Assert.assertEquals(1000, file.length());
+	}
+
+	/**
+	 * Tests a download which is not resumable does not leave its partial file behind when it fails
+	 * @throws Exception
+	 */
+	public void testCacheResponseHandlerFailureDeletesPart() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "failed.bin");
+		File partFile = new File(file.getAbsolutePath() + ".part");
+
+		// the first reads the source directly, the second is passed each chunk
+		CacheResponseHandler[] handlers = {
+			new CacheResponseHandler(file.getAbsolutePath()),
+			new CacheResponseHandler(file.getAbsolutePath())
+			{
+				@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+				{
+					super.onByteChunkReceived(chunk, chunkLength, totalProcessed, totalLength);
+				}
+			}
+		};
+
+		for (CacheResponseHandler handler : handlers)
+		{
+			handler.getConnectionInfo().responseCode = 200;
+
+			// the connection drops after the first 1000 bytes
+			BufferedSource source = Okio.buffer(new ForwardingSource(new Buffer().write(new byte[1000]))
+			{
+				@Override public long read(Buffer sink, long byteCount) throws IOException
+				{
+					long read = super.read(sink, byteCount);
+					if (read == -1)
+					{
+						throw new IOException("Connection reset");
+					}
+
+					return read;
+				}
+			});
+
+			try
+			{
+				handler.onReceiveSource(source, new ClientExecutorTask<File>(RequestMode.GET, null, null, null, handler, true, false, 0), 2000);
+				Assert.fail("The dropped connection should fail the download");
+			}
+			catch (IOException e)
+			{
+				// expected
+			}
+
+			handler.onReleaseBuffers();
+
+			Assert.assertFalse(file.exists());
+			Assert.assertFalse(partFile.exists());
+		}
+	}
+
+	/**
+	 * Tests a successful response with no body, which is never passed to the handler's source, still saves an empty file
+	 * @throws Exception
+	 */
+	public void testCacheResponseHandlerEmptyResponse() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "empty.bin");
+
+		for (boolean resumable : new boolean[]{false, true})
+		{
+			file.delete();
+
+			CacheResponseHandler handler = new CacheResponseHandler(file.getAbsolutePath(), resumable);
+			handler.getConnectionInfo().connectionUrl = "http://example.com/empty";
+			handler.onBeforeRequest(new Request.Builder().url("http://example.com/empty"));
+			handler.getConnectionInfo().responseCode = 200;
+			handler.getConnectionInfo().responseHeaders = Headers.of("Content-Length", "0");
+			handler.onReleaseBuffers();
+			handler.beforeResponse();
+
+			Assert.assertNull(handler.getConnectionInfo().responseError);
+			Assert.assertTrue(handler.getContent().exists());
+			Assert.assertEquals(0, handler.getContent().length());
+			Assert.assertFalse(new File(file.getAbsolutePath() + ".part").exists());
+			Assert.assertFalse(new File(file.getAbsolutePath() + ".meta").exists());
+		}
+
+		file.delete();
+	}
+
+	/**
+	 * Tests the digest response handler fails the request and deletes the file when the digest does not match
+	 * @throws Exception
+	 */
+	public void testDigestResponseHandlerMismatch() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "digest.bin");
+		byte[] data = "hello world".getBytes("UTF-8");
+
+		DigestResponseHandler<File> handler = new DigestResponseHandler<>(new CacheResponseHandler(file.getAbsolutePath()), DigestResponseHandler.Algorithm.MD5, "00000000000000000000000000000000");
+		handler.getConnectionInfo().responseCode = 200;
+
+		Buffer source = new Buffer().write(data);
+
+		try
+		{
+			handler.onReceiveSource(source, new ClientExecutorTask<File>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+			Assert.fail("The mismatch should fail the download before the file is committed");
+		}
+		catch (IOException e)
+		{
+			Assert.assertSame(e, handler.getConnectionInfo().responseError);
+		}
+
+		handler.onReleaseBuffers();
+
+		Assert.assertFalse(handler.isVerified());
+		Assert.assertEquals(ByteString.of(data).md5(), handler.getDigest());
+		Assert.assertFalse(file.exists());
+		Assert.assertFalse(new File(file.getAbsolutePath() + ".part").exists());
+	}
+
+	/**
+	 * Tests a digest mismatch removes the partial download of a resumable cache handler, directly and through a tee,
+	 * so the next request does not resume from data which did not match
+	 * @throws Exception
+	 */
+	public void testDigestResponseHandlerMismatchDiscardsPart() throws Exception
+	{
+		File file = new File(getContext().getCacheDir(), "digest-resume.bin");
+
+		CacheResponseHandler cache = new CacheResponseHandler(file.getAbsolutePath(), true);
+		assertDigestMismatchDiscards(new DigestResponseHandler<>(cache, DigestResponseHandler.Algorithm.MD5, "00000000000000000000000000000000"), cache, file);
+
+		cache = new CacheResponseHandler(file.getAbsolutePath(), true);
+		assertDigestMismatchDiscards(new DigestResponseHandler<>(new TeeResponseHandler(cache), DigestResponseHandler.Algorithm.MD5, "00000000000000000000000000000000"), cache, file);
+	}
+
+	private <T> void assertDigestMismatchDiscards(DigestResponseHandler<T> handler, CacheResponseHandler cache, File file) throws Exception
+	{
+		String url = "http://example.com/digest-resume.bin";
+		byte[] data = new byte[1024 * 64];
+		new Random(41).nextBytes(data);
+
+		cache.getConnectionInfo().connectionUrl = url;
+		handler.getConnectionInfo().connectionUrl = url;
+		handler.onBeforeRequest(new Request.Builder().url(url));
+		handler.getConnectionInfo().responseCode = 200;
+		handler.getConnectionInfo().responseHeaders = Headers.of("ETag", "\"digest\"", "Content-Length", String.valueOf(data.length));
+
+		try
+		{
+			handler.onReceiveSource(new Buffer().write(data), new ClientExecutorTask<T>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+			Assert.fail("The mismatch should fail the download");
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+
+		handler.onReleaseBuffers();
+
+		Assert.assertFalse(file.exists());
+		Assert.assertFalse(new File(file.getAbsolutePath() + ".part").exists());
+		Assert.assertFalse(new File(file.getAbsolutePath() + ".meta").exists());
+	}
+
+	/**
+	 * Tests the digest covers the whole response when the wrapped parser stops before the end of it
+	 * @throws Exception
+	 */
+	public void testDigestResponseHandlerParserStopsEarly() throws Exception
+	{
+		byte[] trailing = new byte[1024 * 64];
+		Arrays.fill(trailing, (byte)' ');
+		byte[] data = new Buffer().writeUtf8("first line\n").write(trailing).readByteArray();
+
+		for (boolean matches : new boolean[]{true, false})
+		{
+			// only reads the first line, and leaves the reader to be closed when the buffers are released
+			StreamResponseHandler<String> lineHandler = new StreamResponseHandler<String>()
+			{
+				private String content;
+
+				@Override public void generateContent()
+				{
+					try
+					{
+						content = new BufferedReader(reader).readLine();
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+
+				@Override public String getContent()
+				{
+					return content;
+				}
+			};
+
+			String expected = matches ? ByteString.of(data).md5().hex() : "00000000000000000000000000000000";
+			DigestResponseHandler<String> handler = new DigestResponseHandler<>(lineHandler, DigestResponseHandler.Algorithm.MD5, expected);
+			handler.getConnectionInfo().responseCode = 200;
+
+			Buffer source = new Buffer().write(data);
+			handler.onReceiveSource(source, new ClientExecutorTask<String>(RequestMode.GET, null, null, null, handler, true, false, 0), data.length);
+			handler.generateContent();
+
+			Assert.assertEquals("first line", handler.getContent());
+			Assert.assertTrue(source.size() > 0);
+
+			handler.onReleaseBuffers();
+
+			Assert.assertEquals(0, source.size());
+			Assert.assertEquals(ByteString.of(data).md5(), handler.getDigest());
+			Assert.assertEquals(matches, handler.isVerified());
+			Assert.assertEquals(matches, handler.getConnectionInfo().responseError == null);
+		}
+	}
+
+	/**
+	 * Tests many large responses buffered at once stay within the memory budget, and return all of their memory
+	 * @throws Exception
+	 */
+	public void testMemoryBudgetConcurrentResponses() throws Exception
+	{
+		final int responseCount = 32;
+		final int responseLength = 256 * 1024;
+		final MemoryBudget budget = new MemoryBudget(1024 * 1024, MemoryBudget.Policy.WAIT);
+		final byte[] data = new byte[responseLength];
+		new Random(1).nextBytes(data);
+
+		MemoryBudget.setDefault(budget);
+
+		try
+		{
+			final AtomicInteger matched = new AtomicInteger();
+			final CountDownLatch finished = new CountDownLatch(responseCount);
+			ExecutorService executor = Executors.newFixedThreadPool(responseCount);
+
+			for (int index = 0; index < responseCount; index++)
+			{
+				// half of the responses have an unknown length, so they grow as they are received
+				final long totalLength = index % 2 == 0 ? responseLength : -1;
+
+				executor.execute(new Runnable()
+				{
+					@Override public void run()
+					{
+						ByteArrayResponseHandler handler = new ByteArrayResponseHandler();
+
+						for (int offset = 0; offset < responseLength; offset += 8192)
+						{
+							handler.onByteChunkReceived(Arrays.copyOfRange(data, offset, offset + 8192), 8192, offset, totalLength);
+						}
+
+						handler.onByteChunkReceived(null, responseLength, responseLength, responseLength);
+						handler.generateContent();
+
+						if (Arrays.equals(data, handler.getContent()))
+						{
+							matched.incrementAndGet();
+						}
+
+						finished.countDown();
+					}
+				});
+			}
+
+			Assert.assertTrue(finished.await(30, TimeUnit.SECONDS));
+			executor.shutdown();
+
+			Assert.assertEquals(responseCount, matched.get());
+			Assert.assertEquals(0, budget.getReserved());
+
+			// only the oldest response can go over the limit, by at most its own size
+			Assert.assertTrue(budget.getPeakReserved() <= budget.getLimit() + responseLength + 64 * 1024);
+		}
+		finally
+		{
+			MemoryBudget.setDefault(new MemoryBudget(Long.MAX_VALUE, MemoryBudget.Policy.WAIT));
+		}
+	}
+
+	/**
+	 * Tests a response is rejected when the memory budget is used up
+	 * @throws Exception
+	 */
+	public void testMemoryBudgetReject() throws Exception
+	{
+		final MemoryBudget budget = new MemoryBudget(1024, MemoryBudget.Policy.REJECT);
+		MemoryBudget.setDefault(budget);
+
+		try
+		{
+			// reserve from another thread, as reservations on the same thread as the oldest are never held back
+			final MemoryBudget.Reservation[] held = new MemoryBudget.Reservation[1];
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override public void run()
+				{
+					try
+					{
+						held[0] = budget.open();
+						held[0].reserve(1020);
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+			thread.start();
+			thread.join();
+
+			StringResponseHandler handler = new StringResponseHandler();
+			handler.onByteChunkReceived("rejected".getBytes("UTF-8"), 8, 0, 8);
+			handler.onReleaseBuffers();
+
+			Assert.assertNotNull(handler.getConnectionInfo().responseError);
+			Assert.assertEquals(1020, budget.getReserved());
+
+			held[0].close();
+			Assert.assertEquals(0, budget.getReserved());
+		}
+		finally
+		{
+			MemoryBudget.setDefault(new MemoryBudget(Long.MAX_VALUE, MemoryBudget.Policy.WAIT));
+		}
+	}
+
+	/**
+	 * Tests a spill buffer moves to disk instead of waiting when the budget is used up under the spill policy, and
+	 * once closed no longer holds back other responses while it is kept
+	 * @throws Exception
+	 */
+	public void testMemoryBudgetSpillDoesNotWait() throws Exception
+	{
+		final MemoryBudget budget = new MemoryBudget(1024, MemoryBudget.Policy.SPILL);
+
+		// kept by the app after its response was received, and older than the ones below
+		SpillBuffer kept = new SpillBuffer(getContext().getCacheDir(), 1024 * 1024, -1, budget);
+		kept.write(new byte[1000], 0, 1000);
+		kept.close();
+
+		Assert.assertFalse(kept.isSpilled());
+		Assert.assertEquals(1000, budget.getReserved());
+
+		// reservations on the same thread as the oldest are never held back, so these are made on another thread
+		final MemoryBudget.Reservation[] receiving = new MemoryBudget.Reservation[1];
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override public void run()
+			{
+				try
+				{
+					// the oldest reservation still receiving can go over the limit
+					receiving[0] = budget.open();
+					receiving[0].reserve(100);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.start();
+		thread.join(2000);
+
+		Assert.assertFalse(thread.isAlive());
+		Assert.assertEquals(100, receiving[0].size());
+
+		// a newer response which can spill does so, rather than waiting for the oldest to finish
+		final SpillBuffer[] spilled = new SpillBuffer[1];
+		thread = new Thread(new Runnable()
+		{
+			@Override public void run()
+			{
+				try
+				{
+					spilled[0] = new SpillBuffer(getContext().getCacheDir(), 1024 * 1024, -1, budget);
+					spilled[0].write(new byte[100], 0, 100);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.start();
+		thread.join(2000);
+
+		Assert.assertFalse(thread.isAlive());
+		Assert.assertTrue(spilled[0].isSpilled());
+		Assert.assertEquals(1100, budget.getReserved());
+
+		spilled[0].release();
+		receiving[0].close();
+		kept.release();
+
+		Assert.assertFalse(spilled[0].getFile().exists());
+		Assert.assertEquals(0, budget.getReserved());
+	}
+
+	/**
+	 * Tests a spill buffer follows the wait and reject policies like any other handler, rather than always spilling
+	 * @throws Exception
+	 */
+	public void testMemoryBudgetPolicyAppliesToSpillBuffers() throws Exception
+	{
+		for (MemoryBudget.Policy policy : new MemoryBudget.Policy[]{MemoryBudget.Policy.WAIT, MemoryBudget.Policy.REJECT})
+		{
+			final MemoryBudget budget = new MemoryBudget(1024, policy);
+
+			// the oldest reservation is on another thread, so the buffer below is held back by it
+			final MemoryBudget.Reservation[] oldest = new MemoryBudget.Reservation[1];
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override public void run()
+				{
+					try
+					{
+						oldest[0] = budget.open();
+						oldest[0].reserve(1000);
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+			thread.start();
+			thread.join(2000);
+
+			final SpillBuffer buffer = new SpillBuffer(getContext().getCacheDir(), 1024 * 1024, -1, budget);
+			final IOException[] error = new IOException[1];
+			thread = new Thread(new Runnable()
+			{
+				@Override public void run()
+				{
+					try
+					{
+						buffer.write(new byte[100], 0, 100);
+					}
+					catch (IOException e)
+					{
+						error[0] = e;
+					}
+				}
+			});
+			thread.start();
+			thread.join(500);
+
+			if (policy == MemoryBudget.Policy.WAIT)
+			{
+				Assert.assertTrue(thread.isAlive());
+
+				oldest[0].close();
+				thread.join(2000);
+
+				Assert.assertFalse(thread.isAlive());
+				Assert.assertNull(error[0]);
+				Assert.assertFalse(buffer.isSpilled());
+				Assert.assertEquals(100, budget.getReserved());
+			}
+			else
+			{
+				Assert.assertFalse(thread.isAlive());
+				Assert.assertNotNull(error[0]);
+				Assert.assertFalse(buffer.isSpilled());
+
+				oldest[0].close();
+			}
+
+			buffer.release();
+			Assert.assertEquals(0, budget.getReserved());
+		}
+	}
+
+	/**
+	 * Tests the spill response handler releases its memory and file when the response fails
+	 * @throws Exception
+	 */
+	public void testSpillResponseHandlerFailureReleases() throws Exception
+	{
+		MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE, MemoryBudget.Policy.WAIT);
+		MemoryBudget.setDefault(budget);
+
+		try
+		{
+			for (long threshold : new long[]{1024 * 1024, 1024})
+			{
+				SpillResponseHandler handler = new SpillResponseHandler(getContext().getCacheDir(), threshold);
+				handler.getConnectionInfo().responseCode = 200;
+
+				// the connection drops after the first 4096 bytes
+				BufferedSource source = Okio.buffer(new ForwardingSource(new Buffer().write(new byte[4096]))
+				{
+					@Override public long read(Buffer sink, long byteCount) throws IOException
+					{
+						long read = super.read(sink, byteCount);
+						if (read == -1)
+						{
+							throw new IOException("Connection reset");
+						}
+
+						return read;
+					}
+				});
+
+				try
+				{
+					handler.onReceiveSource(source, new ClientExecutorTask<SpillBuffer>(RequestMode.GET, null, null, null, handler, true, false, 0), -1);
+					Assert.fail("The dropped connection should fail the response");
+				}
+				catch (IOException e)
+				{
+					// expected
+				}
+
+				File file = handler.getContent().getFile();
+				Assert.assertEquals(threshold == 1024, file != null && file.exists());
+
+				handler.onReleaseBuffers();
+
+				Assert.assertNull(handler.getContent());
+				Assert.assertTrue(file == null || !file.exists());
+				Assert.assertEquals(0, budget.getReserved());
+			}
+		}
+		finally
+		{
+			MemoryBudget.setDefault(new MemoryBudget(Long.MAX_VALUE, MemoryBudget.Policy.WAIT));
+		}
+	}
+
+	/**
+	 * Minimal HTTP server which answers range requests for a byte array, so segmented downloads can be tested
+	 * without a network connection
+	 */
+	private static class RangeServer implements Runnable
+	{
+		private final byte[] data;
+		private final ServerSocket serverSocket;
+		private final AtomicInteger requestCount = new AtomicInteger(0);
+		private final CountDownLatch hangClosed = new CountDownLatch(1);
+		private volatile long failFrom = -1;
+		private volatile long hangFrom = -1;
+
+		private RangeServer(byte[] data) throws IOException
+		{
+			this.data = data;
+			this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+			new Thread(this).start();
+		}
+
+		private String getUrl()
+		{
+			return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/segments.bin";
+		}
+
+		private void close() throws IOException
+		{
+			serverSocket.close();
+		}
+
+		@Override public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					final Socket socket = serverSocket.accept();
+					new Thread(new Runnable()
+					{
+						@Override public void run()
+						{
+							serve(socket);
+						}
+					}).start();
+				}
+			}
+			catch (IOException e)
+			{
+				// the server has been closed
+			}
+		}
+
+		private void serve(Socket socket)
+		{
+			try
+			{
+				BufferedSource in = Okio.buffer(Okio.source(socket));
+				BufferedSink out = Okio.buffer(Okio.sink(socket));
+
+				while (!in.exhausted())
+				{
+					long start = 0;
+					long end = data.length - 1;
+
+					String line;
+					while (!(line = in.readUtf8LineStrict()).isEmpty())
+					{
+						if (line.toLowerCase().startsWith("range: bytes="))
+						{
+							String[] range = line.substring("range: bytes=".length()).split("-");
+							start = Long.parseLong(range[0]);
+							end = range.length > 1 ? Long.parseLong(range[1]) : end;
+						}
+					}
+
+					requestCount.incrementAndGet();
+
+					if (start == hangFrom)
+					{
+						// never answers, until the client gives up and closes the connection
+						in.exhausted();
+						hangClosed.countDown();
+						return;
+					}
+					else if (start == failFrom)
+					{
+						out.writeUtf8("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n");
+					}
+					else
+					{
+						out.writeUtf8("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + start + "-" + end + "/" + data.length + "\r\nContent-Length: " + (end - start + 1) + "\r\n\r\n");
+						out.write(data, (int)start, (int)(end - start + 1));
+					}
+
+					out.flush();
+				}
+			}
+			catch (IOException e)
+			{
+				// the client closed the connection
+			}
+			finally
+			{
+				try
+				{
+					socket.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
 }
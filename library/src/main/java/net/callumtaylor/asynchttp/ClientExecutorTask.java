@@ -3,20 +3,20 @@ package net.callumtaylor.asynchttp;
 import android.net.Uri;
 
 import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.CompressedRequestBody;
+import net.callumtaylor.asynchttp.obj.ContentDecoder;
 import net.callumtaylor.asynchttp.obj.CountingRequestBody;
 import net.callumtaylor.asynchttp.obj.Packet;
 import net.callumtaylor.asynchttp.obj.RequestMode;
 import net.callumtaylor.asynchttp.response.ResponseHandler;
 
-import java.io.BufferedInputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -31,13 +31,21 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
 
 /**
  * Main request task used for performing http requests.
  */
 public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 {
-	private static final int BUFFER_SIZE = 1024 * 8;
+	/**
+	 * Every request's client is built from this one, so they share its connection pool and dispatcher
+	 */
+	private static final OkHttpClient baseClient = new OkHttpClient();
 
 	protected ResponseHandler response;
 	protected Uri requestUri;
@@ -48,6 +56,8 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 	protected boolean allowAllSsl = false;
 	protected long requestTimeout = 0L;
 	protected AtomicBoolean cancelled = new AtomicBoolean(false);
+	protected OkHttpClient httpClient;
+	private boolean buffersReleased = false;
 
 	public ClientExecutorTask(RequestMode mode, Uri request, Headers headers, RequestBody postData, ResponseHandler response, boolean allowRedirect, boolean allowAllSsl, long requestTimeout)
 	{
@@ -61,6 +71,15 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 		this.allowRedirect = allowRedirect;
 	}
 
+	/**
+	 * @return The client the request is made with, configured with the timeout, redirect and SSL settings of
+	 * the task. Handlers can use this to make further requests over the same connection pool.
+	 */
+	public OkHttpClient getHttpClient()
+	{
+		return httpClient;
+	}
+
 	@Override public boolean isCancelled()
 	{
 		return cancelled.get();
@@ -85,9 +104,14 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 
 	@Override public F executeTask()
 	{
-		OkHttpClient httpClient;
+		if (this.response != null && !isCancelled() && this.response.onLoadCachedContent())
+		{
+			// the handler already has its content, so no request is made
+			this.response.getConnectionInfo().responseCode = 200;
+			return finishResponse();
+		}
 
-		httpClient = new OkHttpClient()
+		httpClient = baseClient
 			.newBuilder()
 			.followRedirects(allowRedirect)
 			.followSslRedirects(allowRedirect)
@@ -141,7 +165,6 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 
 		try
 		{
-			System.setProperty("http.keepAlive", "false");
 			Request.Builder request = new Request.Builder()
 				.url(requestUri.toString());
 
@@ -150,18 +173,39 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 				postData = RequestBody.create(null, new byte[0]);
 			}
 
+			final CompressedRequestBody compressedBody = postData instanceof CompressedRequestBody ? (CompressedRequestBody)postData : null;
+
+			CountingRequestBody.ChunkObserver chunkObserver = null;
+			if (response != null && response.observeSentChunks())
+			{
+				chunkObserver = new CountingRequestBody.ChunkObserver()
+				{
+					@Override public void onChunkWritten(ByteString chunk, long bytesWritten, long contentLength)
+					{
+						response.onByteChunkSent(chunk, bytesWritten, contentLength);
+					}
+				};
+			}
+
 			postData = new CountingRequestBody(postData, new CountingRequestBody.Listener()
 			{
-				@Override public void onRequestProgress(byte[] buffer, long bufferCount, long bytesWritten, long contentLength)
+				@Override public void onRequestProgress(long bufferCount, long bytesWritten, long contentLength)
 				{
 					if (response != null)
 					{
-						response.onByteChunkSent(buffer, bufferCount, bytesWritten, contentLength);
+						response.onByteChunkSent(bufferCount, bytesWritten, contentLength);
+
+						if (compressedBody != null)
+						{
+							response.getConnectionInfo().connectionLength = bytesWritten;
+							response.getConnectionInfo().connectionUncompressedLength = compressedBody.getUncompressedBytesWritten();
+							response.onUncompressedBytesSent(compressedBody.getUncompressedBytesWritten(), compressedBody.uncompressedLength());
+						}
 
 						transferProgress(new Packet(bytesWritten, contentLength, false));
 					}
 				}
-			});
+			}, chunkObserver);
 
 			if (requestMode == RequestMode.GET)
 			{
@@ -192,24 +236,44 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 				request = request.method("OPTIONS", null);
 			}
 
-			request.header("Connection", "close");
-
 			if (requestHeaders != null)
 			{
 				request.headers(requestHeaders);
 			}
 
+			if (compressedBody != null && requestMode != RequestMode.GET && requestMode != RequestMode.HEAD && requestMode != RequestMode.OPTIONS)
+			{
+				request.header("Content-Encoding", compressedBody.getEncoding().getCanonical());
+			}
+
+			if (this.response != null)
+			{
+				this.response.onBeforeRequest(request);
+			}
+
+			// advertising the encodings ourselves stops okhttp decoding gzip transparently, so the body is only decoded once
+			Request builtRequest = request.build();
+			if (builtRequest.header("Accept-Encoding") == null && builtRequest.header("Range") == null)
+			{
+				builtRequest = builtRequest.newBuilder().header("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING).build();
+			}
+
+			if (this.response != null)
+			{
+				this.response.getConnectionInfo().requestHeaders = builtRequest.headers();
+			}
+
 			if ((requestMode == RequestMode.POST || requestMode == RequestMode.PUT || requestMode == RequestMode.DELETE || requestMode == RequestMode.PATCH) && postData != null)
 			{
 				final long contentLength = postData.contentLength();
-				if (this.response != null && !isCancelled())
+				if (this.response != null && !isCancelled() && compressedBody == null)
 				{
 					this.response.getConnectionInfo().connectionLength = contentLength;
 				}
 			}
 
 			// Get the response
-			Call call = httpClient.newCall(request.build());
+			Call call = httpClient.newCall(builtRequest);
 			Response response = call.execute();
 
 			int responseCode = response.code();
@@ -221,18 +285,36 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 
 			if (response.body() != null)
 			{
+				final long[] wireCount = {0};
 				String encoding = response.header("Content-Encoding", "");
 				long contentLength = response.body().contentLength();
-				InputStream responseStream;
-				InputStream stream = response.body().byteStream();
+				BufferedSource responseSource = Okio.buffer(new ForwardingSource(response.body().source())
+				{
+					@Override public long read(Buffer sink, long byteCount) throws IOException
+					{
+						long read = super.read(sink, byteCount);
+						if (read > 0)
+						{
+							wireCount[0] += read;
+						}
+
+						return read;
+					}
+				});
 
-				if ("gzip".equalsIgnoreCase(encoding))
+				try
 				{
-					responseStream = new GZIPInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+					BufferedSource decodedSource = ContentDecoder.decode(responseSource, encoding);
+					if (decodedSource != responseSource)
+					{
+						// the decoded length is not known until the body has been read
+						contentLength = -1;
+						responseSource = decodedSource;
+					}
 				}
-				else
+				catch (IOException e)
 				{
-					responseStream = new BufferedInputStream(stream, BUFFER_SIZE);
+					e.printStackTrace();
 				}
 
 				if (this.response != null && !isCancelled())
@@ -244,7 +326,7 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 				{
 					if (this.response != null && contentLength != 0 && !isCancelled())
 					{
-						this.response.onReceiveStream(responseStream, this, contentLength);
+						this.response.onReceiveSource(responseSource, this, contentLength);
 						this.response.generateContent();
 					}
 				}
@@ -253,13 +335,29 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 					responseCode = 0;
 					timeout.printStackTrace();
 				}
+				catch (IOException e)
+				{
+					if (this.response != null)
+					{
+						this.response.getConnectionInfo().responseError = e;
+					}
+
+					e.printStackTrace();
+				}
 				catch (Exception e)
 				{
 					e.printStackTrace();
 				}
 				finally
 				{
-					responseStream.close();
+					// handlers stop any threads still reading the source before it is closed
+					releaseBuffers();
+					responseSource.close();
+
+					if (this.response != null)
+					{
+						this.response.getConnectionInfo().responseWireLength = wireCount[0];
+					}
 				}
 			}
 
@@ -273,12 +371,29 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 			e.printStackTrace();
 		}
 
-		if (this.response != null && !isCancelled())
+		return finishResponse();
+	}
+
+	/**
+	 * Releases the buffers of the response handler and calls its success or failure callbacks
+	 *
+	 * @return The content of the response handler
+	 */
+	private F finishResponse()
+	{
+		if (this.response == null)
+		{
+			return null;
+		}
+
+		releaseBuffers();
+
+		if (!isCancelled())
 		{
 			this.response.getConnectionInfo().responseTime = System.currentTimeMillis();
 			this.response.beforeResponse();
 
-			if (this.response.getConnectionInfo().responseCode < 400 && this.response.getConnectionInfo().responseCode > 100)
+			if (this.response.getConnectionInfo().responseCode < 400 && this.response.getConnectionInfo().responseCode > 100 && this.response.getConnectionInfo().responseError == null)
 			{
 				this.response.onSuccess();
 			}
@@ -291,6 +406,18 @@ public class ClientExecutorTask<F> implements ClientTaskImpl<F>
 		return (F)this.response.getContent();
 	}
 
+	/**
+	 * Calls {@link ResponseHandler#onReleaseBuffers()} once per request
+	 */
+	private void releaseBuffers()
+	{
+		if (this.response != null && !buffersReleased)
+		{
+			buffersReleased = true;
+			this.response.onReleaseBuffers();
+		}
+	}
+
 	@Override public void postExecute()
 	{
 		if (this.response != null && !isCancelled())
@@ -0,0 +1,346 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+/**
+ * Writes to a file on its own I/O thread, so slow storage does not hold up the thread reading from the network.
+ * <p>
+ * Data is copied into a bounded ring of buffers. Each full buffer is handed to the I/O thread and returned to the
+ * ring once it has been written, and the writing thread only waits when every buffer is waiting to be written.
+ * The data is written to a temporary file which is renamed to the target file by {@link #commit()}, so the target
+ * file is never seen partially written. Errors from the I/O thread are thrown from the next call to the writer.
+ */
+public class AsyncFileWriter
+{
+	/**
+	 * When the written data is synced to the storage device
+	 */
+	public enum SyncPolicy
+	{
+		/**
+		 * Never sync, leave it to the operating system
+		 */
+		NONE,
+
+		/**
+		 * Sync once all of the data has been written, before the file is renamed
+		 */
+		ON_COMPLETE,
+
+		/**
+		 * Sync after every buffer is written. This is slow, but loses the least data if the device loses power
+		 */
+		EVERY_BUFFER
+	}
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 64;
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	private static final long IDLE_TIMEOUT = 1000 * 10;
+
+	private final File tempFile;
+	private final File targetFile;
+	private final SyncPolicy syncPolicy;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final BlockingQueue<byte[]> ring;
+	private final ThreadPoolExecutor ioExecutor;
+
+	private byte[] current;
+	private int currentLength = 0;
+	private long length;
+	private boolean closed = false;
+	private volatile IOException error;
+
+	/**
+	 * @param tempFile The file to write to
+	 * @param targetFile The file the temporary file is renamed to when it is committed
+	 * @param offset The position in the temporary file to start writing from. The file is truncated to this length.
+	 * @param syncPolicy When to sync the file to the storage device
+	 * @throws IOException if the temporary file could not be opened
+	 */
+	public AsyncFileWriter(File tempFile, File targetFile, long offset, SyncPolicy syncPolicy) throws IOException
+	{
+		this(tempFile, targetFile, offset, syncPolicy, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+	}
+
+	public AsyncFileWriter(File tempFile, File targetFile, long offset, SyncPolicy syncPolicy, int bufferSize, int bufferCount) throws IOException
+	{
+		this.tempFile = tempFile;
+		this.targetFile = targetFile;
+		this.syncPolicy = syncPolicy;
+		this.length = offset;
+
+		file = new RandomAccessFile(tempFile, "rw");
+		file.setLength(offset);
+		channel = file.getChannel();
+		channel.position(offset);
+
+		ring = new ArrayBlockingQueue<>(bufferCount);
+		for (int index = 0; index < bufferCount; index++)
+		{
+			ring.add(new byte[bufferSize]);
+		}
+
+		// each writer has its own thread, so a slow download does not hold up the writes of the others. The
+		// thread stops once the writer has been idle for a while, in case it is never committed or aborted.
+		ioExecutor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		ioExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return The length the file will be once everything written so far has reached it
+	 */
+	public long length()
+	{
+		return length;
+	}
+
+	public void write(byte[] data, int offset, int byteCount) throws IOException
+	{
+		while (byteCount > 0)
+		{
+			byte[] buffer = currentBuffer();
+			int count = Math.min(byteCount, buffer.length - currentLength);
+
+			System.arraycopy(data, offset, buffer, currentLength, count);
+			currentLength += count;
+			length += count;
+			offset += count;
+			byteCount -= count;
+
+			if (currentLength == buffer.length)
+			{
+				dispatch();
+			}
+		}
+	}
+
+	/**
+	 * Moves all of the data in the buffer into the writer
+	 */
+	public void write(Buffer source) throws IOException
+	{
+		while (source.size() > 0)
+		{
+			byte[] buffer = currentBuffer();
+			int count = source.read(buffer, currentLength, buffer.length - currentLength);
+
+			currentLength += count;
+			length += count;
+
+			if (currentLength == buffer.length)
+			{
+				dispatch();
+			}
+		}
+	}
+
+	/**
+	 * Waits for all of the data to be written, syncs it according to the policy, and renames the temporary
+	 * file to the target file
+	 *
+	 * @throws IOException if any of the data could not be written, or the file could not be renamed
+	 */
+	public void commit() throws IOException
+	{
+		try
+		{
+			if (currentLength > 0 && error == null)
+			{
+				dispatch();
+			}
+		}
+		catch (IOException e)
+		{
+			abort();
+			throw e;
+		}
+
+		finish(true);
+	}
+
+	/**
+	 * Waits for all of the data to be written and closes the temporary file without renaming it.
+	 * Errors are ignored.
+	 */
+	public void abort()
+	{
+		try
+		{
+			if (currentLength > 0 && error == null)
+			{
+				dispatch();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			// the i/o thread can fail the last buffer, which must not stop the file being closed
+			try
+			{
+				finish(false);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private byte[] currentBuffer() throws IOException
+	{
+		if (closed)
+		{
+			throw new IOException("Writer is closed");
+		}
+
+		checkState();
+
+		if (current == null)
+		{
+			try
+			{
+				current = ring.take();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+
+			currentLength = 0;
+		}
+
+		return current;
+	}
+
+	/**
+	 * Hands the current buffer to the I/O thread
+	 */
+	private void dispatch() throws IOException
+	{
+		checkState();
+
+		final byte[] buffer = current;
+		final int count = currentLength;
+
+		current = null;
+		currentLength = 0;
+
+		ioExecutor.execute(new Runnable()
+		{
+			@Override public void run()
+			{
+				try
+				{
+					if (error == null)
+					{
+						ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+						while (data.hasRemaining())
+						{
+							channel.write(data);
+						}
+
+						if (syncPolicy == SyncPolicy.EVERY_BUFFER)
+						{
+							channel.force(false);
+						}
+					}
+				}
+				catch (IOException e)
+				{
+					error = e;
+				}
+				finally
+				{
+					ring.offer(buffer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs after every buffer which has been dispatched, as the I/O thread runs tasks in order
+	 */
+	private void finish(final boolean rename) throws IOException
+	{
+		if (closed)
+		{
+			return;
+		}
+
+		closed = true;
+
+		try
+		{
+			ioExecutor.submit(new Callable<Void>()
+			{
+				@Override public Void call() throws Exception
+				{
+					try
+					{
+						if (rename && error == null && syncPolicy != SyncPolicy.NONE)
+						{
+							channel.force(true);
+						}
+					}
+					finally
+					{
+						file.close();
+					}
+
+					if (rename && error == null && !tempFile.renameTo(targetFile))
+					{
+						throw new IOException("Could not rename " + tempFile + " to " + targetFile);
+					}
+
+					return null;
+				}
+			}).get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+
+			throw new IOException(e.getCause());
+		}
+		finally
+		{
+			ioExecutor.shutdown();
+		}
+
+		checkState();
+	}
+
+	private void checkState() throws IOException
+	{
+		if (error != null)
+		{
+			throw error;
+		}
+	}
+}
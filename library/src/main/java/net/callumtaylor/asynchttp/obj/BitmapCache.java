@@ -0,0 +1,355 @@
+package net.callumtaylor.asynchttp.obj;
+
+import android.graphics.Bitmap;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Memory cache of decoded bitmaps, used by {@link net.callumtaylor.asynchttp.response.BitmapResponseHandler}
+ * to show images again without downloading them.
+ * <pre>
+	BitmapCache cache = new BitmapCache(16 * 1024 * 1024, new BitmapPool(4 * 1024 * 1024));
+
+	client.get(url, new BitmapResponseHandler(200, 200, Bitmap.Config.RGB_565, cache)
+	{
+		&#064;Override public void onSuccess()
+		{
+			imageView.setImageBitmap(getContent());
+		}
+	});
+
+	// once the row is recycled and the bitmap is no longer shown
+	cache.release(bitmap);
+ * </pre>
+ * Bitmaps are keyed by the url and decode settings, and the least recently used bitmaps are removed once the
+ * cache is larger than its maximum size.
+ * <p>
+ * The same bitmap is handed to every handler loading its key, so each bitmap handed out is counted as in use until
+ * it is given back with {@link #release}. Bitmaps are only put in the pool once they are removed from the cache
+ * and no longer in use, so bitmaps from the cache must never be put in the pool directly.
+ * <p>
+ * Only one request is made for a key at a time. Other handlers loading the same key wait for it to finish and
+ * use its bitmap, rather than downloading the image again. If it takes longer than the
+ * {@link #setLoadTimeout(long) load timeout}, they stop waiting and download the image themselves.
+ */
+public class BitmapCache
+{
+	private final long maxSize;
+	private final BitmapPool pool;
+	private final LinkedHashMap<String, Bitmap> bitmaps = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * Default number of milliseconds to wait for another handler loading the same bitmap
+	 */
+	public static final long DEFAULT_LOAD_TIMEOUT = 1000 * 10;
+
+	private final Map<String, Integer> loading = new HashMap<>();
+	// bitmaps which are never released are dropped once they are collected
+	private final Map<Bitmap, Integer> users = new WeakHashMap<>();
+	private long loadTimeout = DEFAULT_LOAD_TIMEOUT;
+	private long size = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+
+	/**
+	 * @param maxSize The number of bytes of bitmaps the cache can hold
+	 */
+	public BitmapCache(long maxSize)
+	{
+		this(maxSize, null);
+	}
+
+	/**
+	 * @param maxSize The number of bytes of bitmaps the cache can hold
+	 * @param pool The pool to reuse bitmaps from when decoding, or null
+	 */
+	public BitmapCache(long maxSize, BitmapPool pool)
+	{
+		this.maxSize = maxSize;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return The pool to reuse bitmaps from, or null
+	 */
+	public BitmapPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Sets how long to wait for another handler loading the same bitmap before loading it as well
+	 *
+	 * @param loadTimeout The timeout in milliseconds
+	 */
+	public synchronized void setLoadTimeout(long loadTimeout)
+	{
+		this.loadTimeout = loadTimeout;
+	}
+
+	public synchronized long getLoadTimeout()
+	{
+		return loadTimeout;
+	}
+
+	/**
+	 * Gets a cached bitmap, which is in use until it is given back with {@link #release}
+	 *
+	 * @return The cached bitmap, or null if it is not cached
+	 */
+	public synchronized Bitmap get(String key)
+	{
+		Bitmap bitmap = find(key);
+		if (bitmap != null)
+		{
+			use(bitmap);
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Adds a bitmap to the cache. The bitmap is not counted as in use, so it may be put in the pool once it is
+	 * removed from the cache.
+	 */
+	public synchronized void put(String key, Bitmap bitmap)
+	{
+		if (bitmap == null)
+		{
+			return;
+		}
+
+		Bitmap replaced = remove(key);
+		if (replaced != null && replaced != bitmap)
+		{
+			evicted(replaced);
+		}
+
+		bitmaps.put(key, bitmap);
+		size += BitmapPool.getSize(bitmap);
+
+		Iterator<Map.Entry<String, Bitmap>> iterator = bitmaps.entrySet().iterator();
+		while (size > maxSize && iterator.hasNext())
+		{
+			Bitmap eldest = iterator.next().getValue();
+			size -= BitmapPool.getSize(eldest);
+			iterator.remove();
+
+			evicted(eldest);
+		}
+	}
+
+	/**
+	 * Gives back a bitmap handed out by the cache once it is no longer shown, for example when a list row is
+	 * recycled. Once no handler is using it and it has been removed from the cache, it is put in the pool.
+	 *
+	 * @param bitmap The bitmap, which must not be used after this by the caller
+	 */
+	public synchronized void release(Bitmap bitmap)
+	{
+		Integer count = users.get(bitmap);
+		if (count == null)
+		{
+			return;
+		}
+
+		if (count > 1)
+		{
+			users.put(bitmap, count - 1);
+			return;
+		}
+
+		users.remove(bitmap);
+
+		// a cached bitmap can still be handed out again, so it is only pooled once it is evicted
+		if (!bitmaps.containsValue(bitmap))
+		{
+			evicted(bitmap);
+		}
+	}
+
+	/**
+	 * @return The number of handlers using the bitmap which have not released it
+	 */
+	public synchronized int getUseCount(Bitmap bitmap)
+	{
+		Integer count = users.get(bitmap);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Removes a bitmap from the cache without putting it in the pool, as it is given to the caller
+	 *
+	 * @return The removed bitmap, or null if it was not cached
+	 */
+	public synchronized Bitmap remove(String key)
+	{
+		Bitmap bitmap = bitmaps.remove(key);
+		if (bitmap != null)
+		{
+			size -= BitmapPool.getSize(bitmap);
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Removes every bitmap from the cache, and puts the ones which are not in use in the pool
+	 */
+	public synchronized void clear()
+	{
+		for (Bitmap bitmap : bitmaps.values())
+		{
+			evicted(bitmap);
+		}
+
+		bitmaps.clear();
+		size = 0;
+	}
+
+	private Bitmap find(String key)
+	{
+		Bitmap bitmap = bitmaps.get(key);
+		if (bitmap != null && bitmap.isRecycled())
+		{
+			remove(key);
+			bitmap = null;
+		}
+
+		return bitmap;
+	}
+
+	private void use(Bitmap bitmap)
+	{
+		Integer count = users.get(bitmap);
+		users.put(bitmap, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Puts a bitmap which has left the cache in the pool, unless a handler is still using it
+	 */
+	private void evicted(Bitmap bitmap)
+	{
+		if (pool != null && !users.containsKey(bitmap))
+		{
+			pool.put(bitmap);
+		}
+	}
+
+	/**
+	 * Gets a bitmap from the cache, waiting for it if another handler is already loading it. If the bitmap is
+	 * not cached, or the other handler takes longer than the load timeout, the caller is responsible for loading
+	 * it and must call {@link #finishLoading} once it is done, whether or not it succeeded.
+	 *
+	 * @param key The key of the bitmap
+	 * @return The cached bitmap, which is in use until it is given back with {@link #release}, or null if the
+	 * caller should load it
+	 * @throws InterruptedIOException if the thread was interrupted while waiting
+	 */
+	public synchronized Bitmap getOrStartLoading(String key) throws InterruptedIOException
+	{
+		long end = System.currentTimeMillis() + loadTimeout;
+		long remaining = loadTimeout;
+
+		while (loading.containsKey(key) && remaining > 0)
+		{
+			try
+			{
+				wait(remaining);
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+
+			remaining = end - System.currentTimeMillis();
+		}
+
+		Bitmap bitmap = find(key);
+		if (bitmap != null)
+		{
+			use(bitmap);
+			hitCount++;
+			return bitmap;
+		}
+
+		missCount++;
+
+		// another handler may still be loading it if the wait timed out
+		Integer count = loading.get(key);
+		loading.put(key, count == null ? 1 : count + 1);
+
+		return null;
+	}
+
+	/**
+	 * Finishes loading a bitmap started with {@link #getOrStartLoading}, and passes it to any handlers waiting for it
+	 *
+	 * @param key The key of the bitmap
+	 * @param bitmap The loaded bitmap, which is in use by the caller until it is given back with {@link #release},
+	 * or null if it failed to load
+	 */
+	public synchronized void finishLoading(String key, Bitmap bitmap)
+	{
+		if (bitmap != null)
+		{
+			use(bitmap);
+		}
+
+		put(key, bitmap);
+
+		Integer count = loading.get(key);
+		if (count != null && count > 1)
+		{
+			loading.put(key, count - 1);
+		}
+		else
+		{
+			loading.remove(key);
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of bytes of bitmaps held in the cache
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return The number of loads which were served from the cache, including those which waited for another load
+	 */
+	public synchronized long getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * @return The number of loads which had to download the image
+	 */
+	public synchronized long getMissCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * @return The fraction of loads which were served from the cache, between 0 and 1
+	 */
+	public synchronized float getHitRate()
+	{
+		long total = hitCount + missCount;
+		return total == 0 ? 0 : (float)hitCount / total;
+	}
+}
@@ -0,0 +1,161 @@
+package net.callumtaylor.asynchttp.obj;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Pool of bitmaps which are no longer shown, so their memory can be reused to decode new images with
+ * <code>BitmapFactory.Options.inBitmap</code> instead of allocating new pixel buffers.
+ * <p>
+ * Bitmaps must only be put in the pool once nothing is drawing them, for example when a list row is recycled.
+ * Bitmaps from a {@link BitmapCache} must be given back with {@link BitmapCache#release} instead, which puts them
+ * in the pool once the cache can no longer hand them out.
+ * When the pool is full, the least recently added bitmaps are recycled. Reusing bitmaps needs API 11, and before
+ * API 19 a bitmap can only be reused for an image of exactly the same size, decoded without downsampling.
+ */
+public class BitmapPool
+{
+	private final long maxSize;
+	private final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+	private long size = 0;
+
+	/**
+	 * @param maxSize The number of bytes of bitmaps the pool can hold
+	 */
+	public BitmapPool(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Adds a bitmap to the pool. Bitmaps which can not be reused are recycled instead.
+	 *
+	 * @param bitmap The bitmap, which must no longer be used
+	 */
+	public synchronized void put(Bitmap bitmap)
+	{
+		if (bitmap == null || bitmap.isRecycled())
+		{
+			return;
+		}
+
+		long bitmapSize = getSize(bitmap);
+		if (!bitmap.isMutable() || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || bitmapSize > maxSize)
+		{
+			bitmap.recycle();
+			return;
+		}
+
+		bitmaps.addFirst(bitmap);
+		size += bitmapSize;
+
+		while (size > maxSize)
+		{
+			Bitmap eldest = bitmaps.removeLast();
+			size -= getSize(eldest);
+			eldest.recycle();
+		}
+	}
+
+	/**
+	 * Removes a bitmap from the pool which can be used to decode an image
+	 *
+	 * @param width The width of the decoded image
+	 * @param height The height of the decoded image
+	 * @param config The config of the decoded image
+	 * @param sampleSize The sample size the image is decoded with
+	 * @return The bitmap, or null if there is none which can be reused
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config, int sampleSize)
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && sampleSize != 1))
+		{
+			return null;
+		}
+
+		long requiredSize = (long)width * height * getBytesPerPixel(config);
+
+		Iterator<Bitmap> iterator = bitmaps.iterator();
+		while (iterator.hasNext())
+		{
+			Bitmap bitmap = iterator.next();
+
+			boolean reusable;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+			{
+				reusable = bitmap.getAllocationByteCount() >= requiredSize;
+			}
+			else
+			{
+				reusable = bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+			}
+
+			if (reusable)
+			{
+				iterator.remove();
+				size -= getSize(bitmap);
+
+				return bitmap;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Recycles every bitmap in the pool
+	 */
+	public synchronized void clear()
+	{
+		for (Bitmap bitmap : bitmaps)
+		{
+			bitmap.recycle();
+		}
+
+		bitmaps.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return The number of bytes of bitmaps held in the pool
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return The number of bytes of memory used by the bitmap
+	 */
+	public static long getSize(Bitmap bitmap)
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			return bitmap.getAllocationByteCount();
+		}
+
+		return (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config)
+	{
+		if (config == Bitmap.Config.ALPHA_8)
+		{
+			return 1;
+		}
+		else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+		{
+			return 2;
+		}
+
+		return 4;
+	}
+}
@@ -0,0 +1,172 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import okio.Buffer;
+import okio.Source;
+import okio.Timeout;
+
+/**
+ * Bounded buffer between a thread which writes data and a thread which reads it. Data is moved
+ * between the threads as okio segments, so nothing is copied.
+ * <p>
+ * The writer blocks when {@link #maxBufferSize} bytes are waiting to be read, and the reader
+ * blocks when there is nothing to read. The writer must always finish by calling {@link #close()}
+ * or {@link #fail(IOException)}, closing the reader waits for this to happen.
+ */
+public class BufferPipe
+{
+	private final Buffer buffer = new Buffer();
+	private final long maxBufferSize;
+	private boolean writerClosed = false;
+	private boolean readerClosed = false;
+	private IOException writerError;
+
+	/**
+	 * @param maxBufferSize The maximum number of bytes held in the pipe before the writer blocks
+	 */
+	public BufferPipe(long maxBufferSize)
+	{
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * Moves bytes from the source buffer into the pipe, blocking until there is space for them
+	 *
+	 * @param source The buffer to move the bytes from
+	 * @param byteCount The number of bytes to move
+	 * @return False if the reader has been closed and the bytes were discarded
+	 * @throws IOException If the thread was interrupted while waiting
+	 */
+	public synchronized boolean write(Buffer source, long byteCount) throws IOException
+	{
+		try
+		{
+			while (!readerClosed && buffer.size() >= maxBufferSize)
+			{
+				wait();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+
+		if (readerClosed)
+		{
+			source.skip(byteCount);
+			return false;
+		}
+
+		buffer.write(source, byteCount);
+		notifyAll();
+
+		return true;
+	}
+
+	/**
+	 * Marks the end of the data. The reader reads what is left in the pipe before reaching the end.
+	 */
+	public synchronized void close()
+	{
+		writerClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Marks the end of the data because of an error. The error is thrown to the reader once it has read
+	 * what is left in the pipe.
+	 *
+	 * @param error The error which stopped the writer
+	 */
+	public synchronized void fail(IOException error)
+	{
+		writerError = error;
+		writerClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return True if the reader has closed the pipe and the writer should stop
+	 */
+	public synchronized boolean isReaderClosed()
+	{
+		return readerClosed;
+	}
+
+	/**
+	 * @return The source used to read from the pipe
+	 */
+	public Source source()
+	{
+		return new Source()
+		{
+			@Override public long read(Buffer sink, long byteCount) throws IOException
+			{
+				synchronized (BufferPipe.this)
+				{
+					try
+					{
+						while (buffer.size() == 0 && !writerClosed && !readerClosed)
+						{
+							BufferPipe.this.wait();
+						}
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+
+					if (readerClosed)
+					{
+						throw new IOException("closed");
+					}
+
+					if (buffer.size() == 0)
+					{
+						if (writerError != null)
+						{
+							throw writerError;
+						}
+
+						return -1;
+					}
+
+					long read = buffer.read(sink, byteCount);
+					BufferPipe.this.notifyAll();
+
+					return read;
+				}
+			}
+
+			@Override public Timeout timeout()
+			{
+				return Timeout.NONE;
+			}
+
+			@Override public void close() throws IOException
+			{
+				synchronized (BufferPipe.this)
+				{
+					readerClosed = true;
+					buffer.clear();
+					BufferPipe.this.notifyAll();
+
+					// wait for the writer to stop so its upstream is never used by two threads at once
+					try
+					{
+						while (!writerClosed)
+						{
+							BufferPipe.this.wait();
+						}
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+				}
+			}
+		};
+	}
+}
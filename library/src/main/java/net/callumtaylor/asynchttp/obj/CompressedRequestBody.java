@@ -0,0 +1,170 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.DeflaterSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * Decorates an OkHttp request body to compress it while it is being written. The body is compressed
+ * as it streams to the connection, so it is never buffered as a whole. The <code>Content-Encoding</code>
+ * header is added to the request by the client.
+ * <pre>
+	RequestBody body = CompressedRequestBody.wrap(JsonBody.create(events), ContentEncoding.GZIP, 1024);
+	client.post("telemetry", body, new BasicResponseHandler());
+ * </pre>
+ * The compressed length is not known up front, so compressed bodies are sent chunked.
+ */
+public class CompressedRequestBody extends RequestBody
+{
+	/**
+	 * Default size below which bodies are not compressed, as the compression overhead outweighs the saving
+	 */
+	public static final long DEFAULT_MINIMUM_SIZE = 1024;
+
+	protected RequestBody delegate;
+	protected ContentEncoding encoding;
+	protected volatile long uncompressedBytesWritten = 0;
+
+	protected CompressedRequestBody(RequestBody delegate, ContentEncoding encoding)
+	{
+		this.delegate = delegate;
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Wraps a body to be compressed with the given encoding if it is at least {@link #DEFAULT_MINIMUM_SIZE} bytes
+	 *
+	 * @param body The body to compress
+	 * @param encoding The encoding to compress the body with
+	 * @return The compressed body, or the original body if it is too small
+	 */
+	public static RequestBody wrap(RequestBody body, ContentEncoding encoding)
+	{
+		return wrap(body, encoding, DEFAULT_MINIMUM_SIZE);
+	}
+
+	/**
+	 * Wraps a body to be compressed with the given encoding. Bodies of unknown length are always compressed, as are
+	 * streams whose length is only estimated, see {@link InputStreamBody#isLengthEstimated(RequestBody)}.
+	 *
+	 * @param body The body to compress
+	 * @param encoding The encoding to compress the body with
+	 * @param minimumSize The size in bytes below which the body is not compressed
+	 * @return The compressed body, or the original body if it is smaller than the minimum size
+	 * @throws IllegalArgumentException if the encoding can not be used to compress requests
+	 */
+	public static RequestBody wrap(RequestBody body, ContentEncoding encoding, long minimumSize)
+	{
+		if (encoding != ContentEncoding.GZIP && encoding != ContentEncoding.DEFLATE)
+		{
+			throw new IllegalArgumentException("Requests can not be compressed with " + encoding.getCanonical());
+		}
+
+		long length = exactLength(body);
+		if (length > -1 && length < minimumSize)
+		{
+			return body;
+		}
+
+		return new CompressedRequestBody(body, encoding);
+	}
+
+	/**
+	 * @return The encoding used to compress the body
+	 */
+	public ContentEncoding getEncoding()
+	{
+		return encoding;
+	}
+
+	/**
+	 * @return The length of the body before it is compressed, or -1 if unknown
+	 */
+	public long uncompressedLength()
+	{
+		return exactLength(delegate);
+	}
+
+	/**
+	 * @return The content length of the body, or -1 if it is unknown or only an estimate
+	 */
+	private static long exactLength(RequestBody body)
+	{
+		if (InputStreamBody.isLengthEstimated(body))
+		{
+			return -1;
+		}
+
+		try
+		{
+			return body.contentLength();
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The number of bytes of the body which have been compressed so far
+	 */
+	public long getUncompressedBytesWritten()
+	{
+		return uncompressedBytesWritten;
+	}
+
+	@Override public MediaType contentType()
+	{
+		return delegate.contentType();
+	}
+
+	@Override public long contentLength()
+	{
+		return -1;
+	}
+
+	@Override public void writeTo(final BufferedSink sink) throws IOException
+	{
+		uncompressedBytesWritten = 0;
+
+		// the compressing sink closes its sink when it finishes, but the request sink is closed by OkHttp
+		Sink unclosable = new ForwardingSink(sink)
+		{
+			@Override public void close() throws IOException
+			{
+				flush();
+			}
+		};
+
+		Sink compressor;
+		if (encoding == ContentEncoding.DEFLATE)
+		{
+			compressor = new DeflaterSink(unclosable, new Deflater());
+		}
+		else
+		{
+			compressor = new GzipSink(unclosable);
+		}
+
+		BufferedSink compressedSink = Okio.buffer(new ForwardingSink(compressor)
+		{
+			@Override public void write(Buffer source, long byteCount) throws IOException
+			{
+				super.write(source, byteCount);
+				uncompressedBytesWritten += byteCount;
+			}
+		});
+
+		delegate.writeTo(compressedSink);
+		compressedSink.close();
+	}
+}
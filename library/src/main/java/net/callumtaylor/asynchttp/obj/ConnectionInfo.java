@@ -28,15 +28,33 @@ public class ConnectionInfo
 	public long connectionLength = 0L;
 
 	/**
-	 * The size of the response in bytes
+	 * The size of the request body in bytes before it was compressed. Only set when the request body is a
+	 * {@link CompressedRequestBody}, in which case {@link #connectionLength} is the compressed size.
+	 */
+	public long connectionUncompressedLength = 0L;
+
+	/**
+	 * The size of the response in bytes, after it has been decoded
 	 */
 	public long responseLength = 0L;
 
+	/**
+	 * The size of the response in bytes as it was received over the connection, before it was decoded
+	 * according to its <code>Content-Encoding</code>
+	 */
+	public long responseWireLength = 0L;
+
 	/**
 	 * The response code from the server
 	 */
 	public int responseCode = 0;
 
+	/**
+	 * The error which stopped the response from being received in full, such as the connection dropping or the
+	 * response failing to be written to disk. A request with an error is treated as failed.
+	 */
+	public Exception responseError;
+
 	/**
 	 * The time the server responded in milliseconds
 	 */
@@ -54,6 +72,6 @@ public class ConnectionInfo
 
 	@Override public String toString()
 	{
-		return "ConnectionInfo [connectionUrl=" + connectionUrl + ", requestMethod=" + requestMethod + ", requestHeaders=" + requestHeaders + ", connectionTime=" + connectionTime + ", connectionLength=" + connectionLength + ", responseLength=" + responseLength + ", responseCode=" + responseCode + ", responseTime=" + responseTime + ", responseHeaders=" + responseHeaders + "]";
+		return "ConnectionInfo [connectionUrl=" + connectionUrl + ", requestMethod=" + requestMethod + ", requestHeaders=" + requestHeaders + ", connectionTime=" + connectionTime + ", connectionLength=" + connectionLength + ", connectionUncompressedLength=" + connectionUncompressedLength + ", responseLength=" + responseLength + ", responseWireLength=" + responseWireLength + ", responseCode=" + responseCode + ", responseError=" + responseError + ", responseTime=" + responseTime + ", responseHeaders=" + responseHeaders + "]";
 	}
 }
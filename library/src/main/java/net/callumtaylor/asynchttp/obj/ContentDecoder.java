@@ -0,0 +1,96 @@
+package net.callumtaylor.asynchttp.obj;
+
+import org.brotli.dec.BrotliInputStream;
+
+import java.io.IOException;
+import java.util.zip.Inflater;
+
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Okio;
+
+/**
+ * Decodes response bodies according to their <code>Content-Encoding</code> header.
+ * <p>
+ * The client advertises {@link #ACCEPT_ENCODING} on every request which does not set its own
+ * <code>Accept-Encoding</code> header. This stops OkHttp from transparently decompressing gzip responses,
+ * so responses are always decoded exactly once, here.
+ */
+public class ContentDecoder
+{
+	/**
+	 * The encodings which can be decoded, in the format of the <code>Accept-Encoding</code> header
+	 */
+	public static final String ACCEPT_ENCODING = "gzip, deflate, br";
+
+	/**
+	 * Wraps a source to decode its content. Encodings are removed in the reverse order to which they were
+	 * applied. If an encoding is not supported, the content is returned with that encoding still applied.
+	 *
+	 * @param source The source of the encoded response body
+	 * @param contentEncoding The value of the <code>Content-Encoding</code> header
+	 * @return The source of the decoded response body, or the original source if it was not encoded
+	 * @throws IOException if the start of the body could not be read
+	 */
+	public static BufferedSource decode(BufferedSource source, String contentEncoding) throws IOException
+	{
+		if (contentEncoding == null || contentEncoding.trim().length() == 0)
+		{
+			return source;
+		}
+
+		String[] codings = contentEncoding.split(",");
+		for (int index = codings.length - 1; index >= 0; index--)
+		{
+			if ("identity".equalsIgnoreCase(codings[index].trim()))
+			{
+				continue;
+			}
+
+			// empty bodies, such as HEAD responses, keep the header but have nothing to decode
+			if (!source.request(1))
+			{
+				return source;
+			}
+
+			ContentEncoding encoding = ContentEncoding.fromCanonical(codings[index]);
+			if (encoding == null)
+			{
+				return source;
+			}
+
+			if (encoding == ContentEncoding.GZIP)
+			{
+				source = Okio.buffer(new GzipSource(source));
+			}
+			else if (encoding == ContentEncoding.DEFLATE)
+			{
+				source = Okio.buffer(new InflaterSource(source, new Inflater(!isZlibHeader(source))));
+			}
+			else if (encoding == ContentEncoding.BROTLI)
+			{
+				source = Okio.buffer(Okio.source(new BrotliInputStream(source.inputStream())));
+			}
+		}
+
+		return source;
+	}
+
+	/**
+	 * Some servers send raw deflate data rather than the zlib format the <code>deflate</code> encoding
+	 * specifies, so the header is checked before choosing how to inflate the body
+	 */
+	private static boolean isZlibHeader(BufferedSource source) throws IOException
+	{
+		if (!source.request(2))
+		{
+			return false;
+		}
+
+		int cmf = source.buffer().getByte(0) & 0xff;
+		int flg = source.buffer().getByte(1) & 0xff;
+
+		return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+	}
+}
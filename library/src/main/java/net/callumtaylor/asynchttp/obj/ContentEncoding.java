@@ -0,0 +1,55 @@
+package net.callumtaylor.asynchttp.obj;
+
+/**
+ * Content codings which can be applied to request and response bodies
+ */
+public enum ContentEncoding
+{
+	/**
+	 * GZIP file format (RFC 1952)
+	 */
+	GZIP("gzip"),
+
+	/**
+	 * ZLIB data format (RFC 1950)
+	 */
+	DEFLATE("deflate"),
+
+	/**
+	 * Brotli compressed data format (RFC 7932). Only supported for decoding responses
+	 */
+	BROTLI("br");
+
+	private String canonicalStr = "";
+	private ContentEncoding(String canonicalStr)
+	{
+		this.canonicalStr = canonicalStr;
+	}
+
+	/**
+	 * @return The name of the encoding used in the <code>Content-Encoding</code> header
+	 */
+	public String getCanonical()
+	{
+		return this.canonicalStr;
+	}
+
+	/**
+	 * Gets the encoding from the name used in the <code>Content-Encoding</code> header
+	 *
+	 * @param canonical The name of the encoding
+	 * @return The encoding, or null if it is not supported
+	 */
+	public static ContentEncoding fromCanonical(String canonical)
+	{
+		for (ContentEncoding encoding : values())
+		{
+			if (encoding.canonicalStr.equalsIgnoreCase(canonical.trim()))
+			{
+				return encoding;
+			}
+		}
+
+		return null;
+	}
+}
@@ -6,6 +6,7 @@ import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okio.Buffer;
 import okio.BufferedSink;
+import okio.ByteString;
 import okio.ForwardingSink;
 import okio.Okio;
 import okio.Sink;
@@ -14,6 +15,10 @@ import okio.Sink;
  * Decorates an OkHttp request body to count the number of bytes written when writing it. Can
  * decorate any request body, but is most useful for tracking the upload progress of large
  * multipart requests.
+ * <p>
+ * By default only the byte counts are reported to the {@link Listener}. If the written bytes
+ * themselves are needed, set a {@link ChunkObserver} which receives a read-only view of each
+ * chunk which shares the underlying segments rather than copying them.
  *
  * @author Leo Nikkilä
  */
@@ -21,13 +26,20 @@ public class CountingRequestBody extends RequestBody
 {
 	protected RequestBody delegate;
 	protected Listener listener;
+	protected ChunkObserver chunkObserver;
 
 	protected CountingSink countingSink;
 
 	public CountingRequestBody(RequestBody delegate, Listener listener)
+	{
+		this(delegate, listener, null);
+	}
+
+	public CountingRequestBody(RequestBody delegate, Listener listener, ChunkObserver chunkObserver)
 	{
 		this.delegate = delegate;
 		this.listener = listener;
+		this.chunkObserver = chunkObserver;
 	}
 
 	@Override public MediaType contentType()
@@ -53,7 +65,7 @@ public class CountingRequestBody extends RequestBody
 	{
 		BufferedSink bufferedSink;
 
-		countingSink = new CountingSink(sink);
+		countingSink = new CountingSink(sink, contentLength());
 		bufferedSink = Okio.buffer(countingSink);
 
 		delegate.writeTo(bufferedSink);
@@ -63,27 +75,49 @@ public class CountingRequestBody extends RequestBody
 
 	protected final class CountingSink extends ForwardingSink
 	{
+		private final long contentLength;
 		private long bytesWritten = 0;
 
-		public CountingSink(Sink delegate)
+		public CountingSink(Sink delegate, long contentLength)
 		{
 			super(delegate);
+			this.contentLength = contentLength;
 		}
 
 		@Override public void write(Buffer source, long byteCount) throws IOException
 		{
-			Buffer copy = new Buffer();
-			source.copyTo(copy, 0, byteCount);
+			ByteString chunk = null;
+			if (chunkObserver != null && byteCount > 0)
+			{
+				// the snapshot shares the segments with the source, so nothing is copied
+				chunk = source.snapshot((int)byteCount);
+			}
 
 			super.write(source, byteCount);
 
 			bytesWritten += byteCount;
-			listener.onRequestProgress(copy.readByteArray(), byteCount, bytesWritten, contentLength());
+
+			if (chunk != null)
+			{
+				chunkObserver.onChunkWritten(chunk, bytesWritten, contentLength);
+			}
+
+			listener.onRequestProgress(byteCount, bytesWritten, contentLength);
 		}
 	}
 
 	public static interface Listener
 	{
-		public void onRequestProgress(byte[] buffer, long bufferCount, long bytesWritten, long contentLength);
+		public void onRequestProgress(long bufferCount, long bytesWritten, long contentLength);
+	}
+
+	/**
+	 * Optional observer for the bytes being written. The chunk is immutable and only valid as a
+	 * view of the data that was sent, use {@link ByteString#write(java.io.OutputStream)} to consume
+	 * it without creating an intermediate array.
+	 */
+	public static interface ChunkObserver
+	{
+		public void onChunkWritten(ByteString chunk, long bytesWritten, long contentLength);
 	}
 }
@@ -0,0 +1,54 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as used by iSCSI and cloud storage services.
+ * <code>java.util.zip.CRC32C</code> is not available on Android.
+ */
+public class Crc32c implements Checksum
+{
+	private static final int[] TABLE = new int[256];
+
+	static
+	{
+		for (int index = 0; index < 256; index++)
+		{
+			int crc = index;
+			for (int bit = 0; bit < 8; bit++)
+			{
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82f63b78 : crc >>> 1;
+			}
+
+			TABLE[index] = crc;
+		}
+	}
+
+	private int crc = 0xffffffff;
+
+	@Override public void update(int b)
+	{
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+	}
+
+	@Override public void update(byte[] b, int off, int len)
+	{
+		int value = crc;
+		for (int index = off, end = off + len; index < end; index++)
+		{
+			value = (value >>> 8) ^ TABLE[(value ^ b[index]) & 0xff];
+		}
+
+		crc = value;
+	}
+
+	@Override public long getValue()
+	{
+		return (~crc) & 0xffffffffL;
+	}
+
+	@Override public void reset()
+	{
+		crc = 0xffffffff;
+	}
+}
@@ -0,0 +1,105 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.internal.Util;
+import okio.BufferedSink;
+
+/**
+ * Request body for uploading a file, or a range of bytes from a file.
+ * <p>
+ * Unlike {@link InputStreamBody}, the content length is taken from the file so the body is never sent chunked,
+ * and the file is reopened every time the body is written so the request can be retried.
+ * <pre>
+	// upload the second megabyte of a file
+	RequestBody body = FileBody.create(MediaType.parse("application/octet-stream"), file, 1024 * 1024, 1024 * 1024);
+ * </pre>
+ */
+public class FileBody
+{
+	private static final int BUFFER_SIZE = 1024 * 64;
+
+	/**
+	 * Creates a body for the whole file
+	 *
+	 * @param mediaType The content type of the file
+	 * @param file The file to upload
+	 * @return The request body
+	 */
+	public static RequestBody create(MediaType mediaType, File file)
+	{
+		return create(mediaType, file, 0, -1);
+	}
+
+	/**
+	 * Creates a body for a range of bytes of a file
+	 *
+	 * @param mediaType The content type of the file
+	 * @param file The file to upload
+	 * @param offset The position in the file of the first byte to upload
+	 * @param length The number of bytes to upload, or -1 for the rest of the file
+	 * @return The request body
+	 */
+	public static RequestBody create(final MediaType mediaType, final File file, final long offset, final long length)
+	{
+		if (offset < 0)
+		{
+			throw new IllegalArgumentException("offset < 0");
+		}
+
+		return new RequestBody()
+		{
+			@Override public MediaType contentType()
+			{
+				return mediaType;
+			}
+
+			@Override public long contentLength()
+			{
+				return length > -1 ? length : Math.max(file.length() - offset, 0);
+			}
+
+			@Override public void writeTo(BufferedSink sink) throws IOException
+			{
+				FileInputStream stream = null;
+
+				try
+				{
+					stream = new FileInputStream(file);
+					FileChannel channel = stream.getChannel();
+					channel.position(offset);
+
+					long remaining = contentLength();
+					byte[] bytes = new byte[(int)Math.min(BUFFER_SIZE, Math.max(remaining, 1))];
+					ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+					while (remaining > 0)
+					{
+						buffer.clear();
+						buffer.limit((int)Math.min(bytes.length, remaining));
+
+						int read = channel.read(buffer);
+						if (read < 0)
+						{
+							throw new EOFException(file + " ended " + remaining + " bytes before the end of the body");
+						}
+
+						sink.write(bytes, 0, read);
+						remaining -= read;
+					}
+				}
+				finally
+				{
+					Util.closeQuietly(stream);
+				}
+			}
+		};
+	}
+}
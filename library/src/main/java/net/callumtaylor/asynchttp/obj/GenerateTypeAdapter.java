@@ -0,0 +1,23 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a model class to have a streaming Gson type adapter generated for it by the <code>processor</code>
+ * module. The generated adapter reads and writes the fields directly rather than by reflection, and is picked
+ * up by the default Gson instance in {@link GsonRegistry} and by builders from {@link GsonRegistry#newBuilder()}.
+ * <p>
+ * The class must have a no-arg constructor, must not be generic, and its serialised fields must not be private.
+ * Field names follow Gson's rules: static and transient fields are ignored and
+ * {@link com.google.gson.annotations.SerializedName} is respected.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface GenerateTypeAdapter
+{
+}
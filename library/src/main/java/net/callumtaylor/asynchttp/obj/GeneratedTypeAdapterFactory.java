@@ -0,0 +1,46 @@
+package net.callumtaylor.asynchttp.obj;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Gson type adapter factory which supplies the adapters generated by the <code>processor</code> module for
+ * classes annotated with {@link GenerateTypeAdapter}. Classes which are not annotated, or whose adapter was not
+ * generated, fall through to Gson's reflective adapters.
+ * <p>
+ * This factory is registered on the default instance in {@link GsonRegistry} and on builders from
+ * {@link GsonRegistry#newBuilder()}. It is not added to other builders, because the generated adapters do not
+ * follow a builder's field naming policy or exclusion settings.
+ */
+public class GeneratedTypeAdapterFactory implements TypeAdapterFactory
+{
+	/**
+	 * Suffix added to the binary name of the model class to get the name of its adapter, for example
+	 * <code>com.example.Outer$Inner</code> becomes <code>com.example.Outer$Inner$$TypeAdapter</code>. The
+	 * <code>$</code> is kept, so nested classes never share an adapter name with a class such as <code>Outer_Inner</code>.
+	 */
+	public static final String SUFFIX = "$$TypeAdapter";
+
+	@SuppressWarnings("unchecked") @Override public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+	{
+		Class<? super T> rawType = type.getRawType();
+		if (!rawType.isAnnotationPresent(GenerateTypeAdapter.class))
+		{
+			return null;
+		}
+
+		try
+		{
+			Class<?> adapterClass = Class.forName(rawType.getName() + SUFFIX, true, rawType.getClassLoader());
+			return (TypeAdapter<T>)adapterClass.getConstructor(Gson.class).newInstance(gson);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,131 @@
+package net.callumtaylor.asynchttp.obj;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of shared Gson instances used by the Gson response handlers.
+ * <p>
+ * Creating a Gson instance is cheap, but every instance builds its own cache of type adapters by
+ * reflection the first time each type is parsed. Sharing instances means this is done once per type
+ * rather than once per request. Instances are registered against a key, and types can be preloaded
+ * at startup so the first request does not pay for the reflection either.
+ * <p>
+ * The default instance uses the adapters generated for classes annotated with {@link GenerateTypeAdapter}, see
+ * {@link GeneratedTypeAdapterFactory}. Other instances only use them if their builder came from {@link #newBuilder()}.
+ * <pre>
+	GsonRegistry.register("api", new GsonBuilder().setDateFormat("yyyy-MM-dd"));
+	GsonRegistry.preload("api", User.class, Post.class);
+
+	new GsonResponseHandler&lt;User&gt;(GsonRegistry.get("api"), User.class);
+ * </pre>
+ */
+public class GsonRegistry
+{
+	/**
+	 * Key of the default instance, which is a Gson instance with the default configuration and generated adapters
+	 */
+	public static final String DEFAULT = "default";
+
+	private static final Map<String, Gson> instances = new HashMap<>();
+
+	static
+	{
+		instances.put(DEFAULT, newBuilder().create());
+	}
+
+	/**
+	 * Creates a builder with the {@link GeneratedTypeAdapterFactory} registered. The generated adapters do not know
+	 * about the builder's field naming policy, exclusion strategies, {@link com.google.gson.annotations.Expose} or
+	 * version settings, so do not set any of those on the returned builder. Type adapters can still be registered.
+	 *
+	 * @return A new builder which uses the generated adapters
+	 */
+	public static GsonBuilder newBuilder()
+	{
+		return new GsonBuilder().registerTypeAdapterFactory(new GeneratedTypeAdapterFactory());
+	}
+
+	/**
+	 * @return The shared instance with the default configuration
+	 */
+	@NonNull
+	public static Gson getDefault()
+	{
+		return get(DEFAULT);
+	}
+
+	/**
+	 * Gets a shared instance by its key
+	 *
+	 * @param key The key the instance was registered with
+	 * @return The registered instance, or the default instance if none was registered with the key
+	 */
+	@NonNull
+	public static synchronized Gson get(String key)
+	{
+		Gson gson = instances.get(key);
+		return gson == null ? instances.get(DEFAULT) : gson;
+	}
+
+	/**
+	 * Registers a shared instance. This replaces any instance previously registered with the key.
+	 * The builder is used as it is, so use {@link #newBuilder()} to create it if the instance should use the
+	 * generated adapters.
+	 *
+	 * @param key The key to register the instance with
+	 * @param builder The configuration of the instance
+	 * @return The registered instance
+	 */
+	public static Gson register(String key, GsonBuilder builder)
+	{
+		return register(key, builder.create());
+	}
+
+	/**
+	 * Registers a shared instance. This replaces any instance previously registered with the key.
+	 *
+	 * @param key The key to register the instance with
+	 * @param gson The instance
+	 * @return The registered instance
+	 */
+	public static synchronized Gson register(String key, Gson gson)
+	{
+		instances.put(key, gson);
+		return gson;
+	}
+
+	/**
+	 * Builds the type adapters of the default instance for the given types
+	 *
+	 * @param types The types to build the adapters for
+	 */
+	public static void preload(Type... types)
+	{
+		preload(DEFAULT, types);
+	}
+
+	/**
+	 * Builds the type adapters of a shared instance for the given types, so the reflection is not done
+	 * during the first request. This is best called on a background thread at startup.
+	 *
+	 * @param key The key of the instance
+	 * @param types The types to build the adapters for
+	 */
+	public static void preload(String key, Type... types)
+	{
+		Gson gson = get(key);
+
+		for (Type type : types)
+		{
+			gson.getAdapter(TypeToken.get(type));
+		}
+	}
+}
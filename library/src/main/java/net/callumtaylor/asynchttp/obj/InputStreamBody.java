@@ -13,6 +13,8 @@ import okio.Source;
 /**
  * Simple wrapper for sending requests using input streams. Useful for uploading large files in a buffered way
  * without having to completely read the file into memory.
+ * <p>
+ * The stream can only be read once, so the request can not be retried. Use {@link FileBody} to upload files.
  *
  * @author Callum Taylor
  */
@@ -20,39 +22,81 @@ public class InputStreamBody
 {
 	public static RequestBody create(final MediaType mediaType, final InputStream inputStream)
 	{
-		return new RequestBody()
+		long length;
+
+		try
 		{
-			@Override public MediaType contentType()
-			{
-				return mediaType;
-			}
+			length = inputStream.available();
+		}
+		catch (IOException e)
+		{
+			length = 0;
+		}
+
+		return new StreamBody(mediaType, inputStream, length, true);
+	}
+
+	/**
+	 * Creates a body from a stream of known length. {@link InputStream#available()} is only an estimate
+	 * for most streams, so the length should be passed when it is known.
+	 *
+	 * @param mediaType The content type of the stream
+	 * @param inputStream The stream to upload
+	 * @param contentLength The length of the stream, or -1 to send the body chunked
+	 * @return The request body
+	 */
+	public static RequestBody create(MediaType mediaType, InputStream inputStream, long contentLength)
+	{
+		return new StreamBody(mediaType, inputStream, contentLength, false);
+	}
+
+	/**
+	 * @return True if the body was created by {@link #create(MediaType, InputStream)}, so its content length is only
+	 * the estimate from {@link InputStream#available()}
+	 */
+	public static boolean isLengthEstimated(RequestBody body)
+	{
+		return body instanceof StreamBody && ((StreamBody)body).estimated;
+	}
 
-			@Override public long contentLength()
+	private static class StreamBody extends RequestBody
+	{
+		private final MediaType mediaType;
+		private final InputStream inputStream;
+		private final long contentLength;
+		private final boolean estimated;
+
+		private StreamBody(MediaType mediaType, InputStream inputStream, long contentLength, boolean estimated)
+		{
+			this.mediaType = mediaType;
+			this.inputStream = inputStream;
+			this.contentLength = contentLength;
+			this.estimated = estimated;
+		}
+
+		@Override public MediaType contentType()
+		{
+			return mediaType;
+		}
+
+		@Override public long contentLength()
+		{
+			return contentLength;
+		}
+
+		@Override public void writeTo(BufferedSink sink) throws IOException
+		{
+			Source source = null;
+
+			try
 			{
-				try
-				{
-					return inputStream.available();
-				}
-				catch (IOException e)
-				{
-					return 0;
-				}
+				source = Okio.source(inputStream);
+				sink.writeAll(source);
 			}
-
-			@Override public void writeTo(BufferedSink sink) throws IOException
+			finally
 			{
-				Source source = null;
-
-				try
-				{
-					source = Okio.source(inputStream);
-					sink.writeAll(source);
-				}
-				finally
-				{
-					Util.closeQuietly(source);
-				}
+				Util.closeQuietly(source);
 			}
-		};
+		}
 	}
 }
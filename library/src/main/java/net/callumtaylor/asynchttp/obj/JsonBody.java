@@ -1,19 +1,155 @@
 package net.callumtaylor.asynchttp.obj;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
 
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
 
 /**
- * Convenience class for creating request body for json
+ * Convenience class for creating request body for json.
+ * <p>
+ * The json is written straight to the request as it is serialised, so the body is never held in memory
+ * as a string. {@link JsonElement} bodies have a content length, which is calculated with an extra
+ * serialisation pass that does not keep the output. Bodies created from other objects have no content
+ * length and are sent chunked, unless the length is asked for.
  *
  * @author Callum Taylor
  */
 public class JsonBody
 {
+	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Creates a json body with a content length from a json element
+	 *
+	 * @param json The json to send
+	 * @return The request body
+	 */
 	public static RequestBody create(JsonElement json)
 	{
-		return RequestBody.create(MediaType.parse("application/json"), json.toString());
+		return create(GsonRegistry.getDefault(), json, JsonElement.class, true);
+	}
+
+	/**
+	 * Creates a json body from an object using the shared default Gson instance, which uses the adapters generated for
+	 * classes annotated with {@link GenerateTypeAdapter}
+	 *
+	 * @param src The object to serialise
+	 * @return The request body
+	 */
+	public static RequestBody create(Object src)
+	{
+		return create(GsonRegistry.getDefault(), src, src.getClass());
+	}
+
+	/**
+	 * Creates a json body from an object
+	 *
+	 * @param gson The gson instance used to serialise the object
+	 * @param src The object to serialise
+	 * @param type The type of the object, which is needed for generic types
+	 * @return The request body
+	 */
+	public static RequestBody create(Gson gson, Object src, Type type)
+	{
+		return create(gson, src, type, false);
+	}
+
+	/**
+	 * Creates a json body from an object
+	 *
+	 * @param gson The gson instance used to serialise the object
+	 * @param src The object to serialise
+	 * @param type The type of the object, which is needed for generic types
+	 * @param computeLength True to calculate the content length when it is first needed, by serialising
+	 *                      the object without keeping the output. False to send the body chunked.
+	 * @return The request body
+	 */
+	public static RequestBody create(final Gson gson, final Object src, final Type type, final boolean computeLength)
+	{
+		return new RequestBody()
+		{
+			private long contentLength = -1;
+
+			@Override public MediaType contentType()
+			{
+				return JSON;
+			}
+
+			@Override public long contentLength() throws IOException
+			{
+				if (computeLength && contentLength < 0)
+				{
+					CountingSink counter = new CountingSink();
+					BufferedSink sink = Okio.buffer(counter);
+
+					writeTo(sink);
+					sink.flush();
+
+					contentLength = counter.count;
+				}
+
+				return contentLength;
+			}
+
+			@Override public void writeTo(BufferedSink sink) throws IOException
+			{
+				JsonWriter writer = new JsonWriter(new OutputStreamWriter(sink.outputStream(), UTF_8));
+
+				if (src instanceof JsonElement)
+				{
+					// matches JsonElement.toString(), which keeps null members
+					writer.setLenient(true);
+					gson.getAdapter(JsonElement.class).write(writer, (JsonElement)src);
+				}
+				else
+				{
+					gson.toJson(src, type, writer);
+				}
+
+				// flush rather than close, closing the writer would close the sink
+				writer.flush();
+			}
+		};
+	}
+
+	/**
+	 * Sink which discards everything written to it and counts the bytes
+	 */
+	private static class CountingSink implements Sink
+	{
+		private long count = 0;
+
+		@Override public void write(Buffer source, long byteCount) throws IOException
+		{
+			count += byteCount;
+			source.skip(byteCount);
+		}
+
+		@Override public void flush() throws IOException
+		{
+		}
+
+		@Override public Timeout timeout()
+		{
+			return Timeout.NONE;
+		}
+
+		@Override public void close() throws IOException
+		{
+		}
 	}
 }
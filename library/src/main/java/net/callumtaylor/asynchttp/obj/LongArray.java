@@ -0,0 +1,85 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of longs which stores the values unboxed, using 8 bytes per value plus the unused
+ * capacity at the end of the array.
+ */
+public class LongArray
+{
+	private long[] values;
+	private int size = 0;
+
+	public LongArray()
+	{
+		this(1024);
+	}
+
+	/**
+	 * @param capacity The number of values to allocate space for
+	 */
+	public LongArray(int capacity)
+	{
+		values = new long[Math.max(capacity, 16)];
+	}
+
+	public void add(long value)
+	{
+		if (size == values.length)
+		{
+			// grow by half rather than doubling, to keep the unused capacity small, and by at least one value
+			// as a trimmed array may be empty
+			values = Arrays.copyOf(values, Math.max(values.length + (values.length >> 1), 16));
+		}
+
+		values[size++] = value;
+	}
+
+	public long get(int index)
+	{
+		if (index >= size)
+		{
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+
+		return values[index];
+	}
+
+	/**
+	 * @return The number of values in the array
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Shrinks the backing array to the number of values in it
+	 */
+	public void trimToSize()
+	{
+		if (values.length != size)
+		{
+			values = Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Gets the backing array without copying it. Only the first {@link #size()} values are used.
+	 *
+	 * @return The backing array
+	 */
+	public long[] array()
+	{
+		return values;
+	}
+
+	/**
+	 * @return A copy of the values
+	 */
+	public long[] toArray()
+	{
+		return Arrays.copyOf(values, size);
+	}
+}
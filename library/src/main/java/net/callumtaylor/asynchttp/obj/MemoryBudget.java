@@ -0,0 +1,260 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+/**
+ * Limits the memory used by all of the responses being buffered in memory at once.
+ * <p>
+ * Handlers which hold the response in memory open a {@link Reservation} and reserve memory from it before
+ * they use it. When the budget is used up, the {@link Policy} decides what happens to the next reservation.
+ * The default budget is unlimited.
+ * <pre>
+	MemoryBudget.setDefault(new MemoryBudget(16 * 1024 * 1024, MemoryBudget.Policy.WAIT));
+ * </pre>
+ * With {@link Policy#WAIT} and {@link Policy#SPILL}, the oldest reservation still receiving its response is always allowed to grow, even
+ * past the limit, so the responses holding memory can never all be waiting on each other. So are other reservations
+ * made on the same thread as the oldest one, such as the handlers of a
+ * {@link net.callumtaylor.asynchttp.response.TeeResponseHandler}. Reservations which have been
+ * {@link Reservation#finish() finished} keep their memory but no longer count as the oldest.
+ */
+public class MemoryBudget
+{
+	public enum Policy
+	{
+		/**
+		 * Wait until enough memory has been released, including handlers which could move their response to disk
+		 */
+		WAIT,
+
+		/**
+		 * Move the response to disk if the handler supports it, such as a {@link SpillBuffer}, otherwise wait
+		 */
+		SPILL,
+
+		/**
+		 * Fail the request, including handlers which could move their response to disk
+		 */
+		REJECT
+	}
+
+	private static volatile MemoryBudget defaultBudget = new MemoryBudget(Long.MAX_VALUE, Policy.WAIT);
+
+	private final long limit;
+	private final Policy policy;
+	private final LinkedList<Reservation> reservations = new LinkedList<>();
+	private long reserved = 0;
+	private long peakReserved = 0;
+
+	/**
+	 * @param limit The number of bytes which can be reserved at once
+	 * @param policy What to do when a reservation would go over the limit
+	 */
+	public MemoryBudget(long limit, Policy policy)
+	{
+		this.limit = limit;
+		this.policy = policy;
+	}
+
+	/**
+	 * @return The budget used by the response handlers
+	 */
+	public static MemoryBudget getDefault()
+	{
+		return defaultBudget;
+	}
+
+	/**
+	 * Sets the budget used by the response handlers. Requests which have already started keep using the old budget.
+	 *
+	 * @param budget The budget
+	 */
+	public static void setDefault(MemoryBudget budget)
+	{
+		defaultBudget = budget;
+	}
+
+	public long getLimit()
+	{
+		return limit;
+	}
+
+	public Policy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * @return The number of bytes currently reserved
+	 */
+	public synchronized long getReserved()
+	{
+		return reserved;
+	}
+
+	/**
+	 * @return The largest number of bytes which have been reserved at once
+	 */
+	public synchronized long getPeakReserved()
+	{
+		return peakReserved;
+	}
+
+	/**
+	 * Opens a reservation for a response. It must be closed once the response is no longer held in memory.
+	 *
+	 * @return The reservation
+	 */
+	public synchronized Reservation open()
+	{
+		Reservation reservation = new Reservation();
+		reservations.add(reservation);
+
+		return reservation;
+	}
+
+	/**
+	 * Memory reserved by a single response
+	 */
+	public class Reservation
+	{
+		private final Thread owner = Thread.currentThread();
+		private long size = 0;
+		private boolean finished = false;
+		private boolean closed = false;
+
+		private Reservation()
+		{
+		}
+
+		/**
+		 * @return The number of bytes held by this reservation
+		 */
+		public long size()
+		{
+			synchronized (MemoryBudget.this)
+			{
+				return size;
+			}
+		}
+
+		/**
+		 * Reserves memory for a handler which can not move its response to disk
+		 *
+		 * @param bytes The number of bytes to reserve
+		 * @throws IOException if the policy is {@link Policy#REJECT} and there is not enough memory, or the thread was interrupted
+		 */
+		public void reserve(long bytes) throws IOException
+		{
+			reserve(bytes, false);
+		}
+
+		/**
+		 * Reserves memory
+		 *
+		 * @param bytes The number of bytes to reserve
+		 * @param canSpill True if the handler can move its response to disk instead
+		 * @return True if the memory was reserved, false if the handler should move its response to disk. This is
+		 * only false if the handler can spill and the policy is {@link Policy#SPILL}.
+		 * @throws IOException if the policy is {@link Policy#REJECT} and there is not enough memory, or the thread was
+		 * interrupted
+		 */
+		public boolean reserve(long bytes, boolean canSpill) throws IOException
+		{
+			synchronized (MemoryBudget.this)
+			{
+				if (closed || finished)
+				{
+					throw new IllegalStateException("Reservation is " + (closed ? "closed" : "finished"));
+				}
+
+				while (reserved + bytes > limit && reservations.getFirst().owner != Thread.currentThread())
+				{
+					if (canSpill && policy == Policy.SPILL)
+					{
+						return false;
+					}
+
+					if (policy == Policy.REJECT)
+					{
+						throw new IOException("Memory budget of " + limit + " bytes exceeded");
+					}
+
+					try
+					{
+						MemoryBudget.this.wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+				}
+
+				size += bytes;
+				reserved += bytes;
+				peakReserved = Math.max(peakReserved, reserved);
+
+				return true;
+			}
+		}
+
+		/**
+		 * Returns memory to the budget
+		 *
+		 * @param bytes The number of bytes to release
+		 */
+		public void release(long bytes)
+		{
+			synchronized (MemoryBudget.this)
+			{
+				bytes = Math.min(bytes, size);
+				size -= bytes;
+				reserved -= bytes;
+
+				MemoryBudget.this.notifyAll();
+			}
+		}
+
+		/**
+		 * Marks the response as received. The memory stays reserved until the reservation is closed, but it no longer
+		 * counts as the oldest reservation, so a response kept by the app does not hold back the ones still being
+		 * received. Nothing more can be reserved.
+		 */
+		public void finish()
+		{
+			synchronized (MemoryBudget.this)
+			{
+				if (closed || finished)
+				{
+					return;
+				}
+
+				finished = true;
+				reservations.remove(this);
+
+				MemoryBudget.this.notifyAll();
+			}
+		}
+
+		/**
+		 * Releases all of the memory held by the reservation
+		 */
+		public void close()
+		{
+			synchronized (MemoryBudget.this)
+			{
+				if (closed)
+				{
+					return;
+				}
+
+				release(size);
+				closed = true;
+				reservations.remove(this);
+
+				MemoryBudget.this.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package net.callumtaylor.asynchttp.obj;
+
+/**
+ * Table of numbers stored as one primitive array per column, so millions of values can be held without
+ * boxing each one. Used by {@link net.callumtaylor.asynchttp.response.NumericArrayResponseHandler}.
+ */
+public class NumericColumns
+{
+	public enum Type
+	{
+		LONG,
+		DOUBLE
+	}
+
+	private final Type[] types;
+	private final LongArray[] longs;
+	private final DoubleArray[] doubles;
+	private int rowCount = 0;
+
+	/**
+	 * @param types The type of each column
+	 */
+	public NumericColumns(Type... types)
+	{
+		if (types.length == 0)
+		{
+			throw new IllegalArgumentException("At least one column is needed");
+		}
+
+		this.types = types;
+		this.longs = new LongArray[types.length];
+		this.doubles = new DoubleArray[types.length];
+
+		for (int column = 0; column < types.length; column++)
+		{
+			if (types[column] == Type.LONG)
+			{
+				longs[column] = new LongArray();
+			}
+			else
+			{
+				doubles[column] = new DoubleArray();
+			}
+		}
+	}
+
+	public Type getType(int column)
+	{
+		return types[column];
+	}
+
+	public int getColumnCount()
+	{
+		return types.length;
+	}
+
+	/**
+	 * @return The number of complete rows
+	 */
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	/**
+	 * Adds a value to a long column. Once every column has a value, the row is complete.
+	 */
+	public void addLong(int column, long value)
+	{
+		longs[column].add(value);
+		onValueAdded(column);
+	}
+
+	/**
+	 * Adds a value to a double column. Once every column has a value, the row is complete.
+	 */
+	public void addDouble(int column, double value)
+	{
+		doubles[column].add(value);
+		onValueAdded(column);
+	}
+
+	private void onValueAdded(int column)
+	{
+		if (column == types.length - 1)
+		{
+			rowCount++;
+		}
+	}
+
+	public long getLong(int row, int column)
+	{
+		return longs[column].get(row);
+	}
+
+	public double getDouble(int row, int column)
+	{
+		return types[column] == Type.LONG ? longs[column].get(row) : doubles[column].get(row);
+	}
+
+	/**
+	 * @return The values of a long column
+	 * @throws IllegalArgumentException if the column is not a long column
+	 */
+	public LongArray getLongs(int column)
+	{
+		if (longs[column] == null)
+		{
+			throw new IllegalArgumentException("Column " + column + " is not a long column");
+		}
+
+		return longs[column];
+	}
+
+	/**
+	 * @return The values of a double column
+	 * @throws IllegalArgumentException if the column is not a double column
+	 */
+	public DoubleArray getDoubles(int column)
+	{
+		if (doubles[column] == null)
+		{
+			throw new IllegalArgumentException("Column " + column + " is not a double column");
+		}
+
+		return doubles[column];
+	}
+
+	/**
+	 * Shrinks every column to the number of values in it
+	 */
+	public void trimToSize()
+	{
+		for (int column = 0; column < types.length; column++)
+		{
+			if (longs[column] != null)
+			{
+				longs[column].trimToSize();
+			}
+			else
+			{
+				doubles[column].trimToSize();
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package net.callumtaylor.asynchttp.obj;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Builds <code>org.json</code> objects from a Gson {@link JsonReader}, so a response can be parsed into a
+ * {@link JSONObject} or {@link JSONArray} while it streams in, rather than being collected into a string and
+ * tokenised again by <code>org.json</code>.
+ * <p>
+ * Values are converted the same way as <code>org.json</code> parses them: whole numbers become an Integer, or
+ * a Long if they are too large, other numbers become a Double, and nulls become {@link JSONObject#NULL}.
+ */
+public class OrgJsonReader
+{
+	/**
+	 * Reads the next object from the reader
+	 */
+	public static JSONObject readObject(JsonReader reader) throws IOException, JSONException
+	{
+		JSONObject object = new JSONObject();
+
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			object.put(name, readValue(reader));
+		}
+		reader.endObject();
+
+		return object;
+	}
+
+	/**
+	 * Reads the next array from the reader
+	 */
+	public static JSONArray readArray(JsonReader reader) throws IOException, JSONException
+	{
+		JSONArray array = new JSONArray();
+
+		reader.beginArray();
+		while (reader.hasNext())
+		{
+			array.put(readValue(reader));
+		}
+		reader.endArray();
+
+		return array;
+	}
+
+	/**
+	 * Reads the next value from the reader
+	 *
+	 * @return A {@link JSONObject}, {@link JSONArray}, String, Boolean, Integer, Long, Double or {@link JSONObject#NULL}
+	 */
+	public static Object readValue(JsonReader reader) throws IOException, JSONException
+	{
+		JsonToken token = reader.peek();
+		switch (token)
+		{
+			case BEGIN_OBJECT:
+				return readObject(reader);
+
+			case BEGIN_ARRAY:
+				return readArray(reader);
+
+			case STRING:
+				return reader.nextString();
+
+			case NUMBER:
+				return parseNumber(reader.nextString());
+
+			case BOOLEAN:
+				return reader.nextBoolean();
+
+			case NULL:
+				reader.nextNull();
+				return JSONObject.NULL;
+
+			default:
+				throw new JSONException("Unexpected " + token + " at " + reader.getPath());
+		}
+	}
+
+	private static Object parseNumber(String literal)
+	{
+		if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1)
+		{
+			try
+			{
+				long value = Long.parseLong(literal);
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+				{
+					return (int)value;
+				}
+
+				return value;
+			}
+			catch (NumberFormatException e)
+			{
+				// too large for a long, fall through to a double
+			}
+		}
+
+		return Double.valueOf(literal);
+	}
+}
@@ -0,0 +1,228 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Byte buffer used by the response handlers to hold the response body in memory.
+ * <p>
+ * When the length of the response is known, the data is written into a single array of
+ * exactly that size which is returned as-is by {@link #toByteArray()}. When the length is
+ * unknown, the data is written into a list of segments which is only made contiguous when
+ * {@link #toByteArray()} is called, instead of repeatedly doubling an array.
+ * <p>
+ * The memory is reserved from the {@link MemoryBudget} before it is used, and must be returned with
+ * {@link #release()} once the buffer is no longer needed.
+ */
+public class ResponseBuffer
+{
+	private static final long RESERVE_STEP = 64 * 1024;
+
+	private byte[] bytes;
+	private Buffer segments;
+	private int size = 0;
+	private final MemoryBudget.Reservation reservation;
+
+	/**
+	 * @param expectedLength The length of the response, or -1 if unknown
+	 * @throws IOException if the memory could not be reserved from the default {@link MemoryBudget}
+	 */
+	public ResponseBuffer(long expectedLength) throws IOException
+	{
+		this(expectedLength, MemoryBudget.getDefault());
+	}
+
+	/**
+	 * @param expectedLength The length of the response, or -1 if unknown
+	 * @param budget The budget to reserve the memory from
+	 * @throws IOException if the memory could not be reserved
+	 */
+	public ResponseBuffer(long expectedLength, MemoryBudget budget) throws IOException
+	{
+		reservation = budget.open();
+
+		if (expectedLength > 0 && expectedLength <= Integer.MAX_VALUE - 8)
+		{
+			reserve(expectedLength);
+			bytes = new byte[(int)expectedLength];
+		}
+		else
+		{
+			segments = new Buffer();
+		}
+	}
+
+	/**
+	 * Appends data to the buffer
+	 *
+	 * @param chunk The data to append
+	 * @param offset The offset in the chunk to start reading from
+	 * @param length The number of bytes to append
+	 * @throws IOException if the memory could not be reserved
+	 */
+	public void write(byte[] chunk, int offset, int length) throws IOException
+	{
+		if (bytes != null && size + length > bytes.length)
+		{
+			moveToSegments();
+		}
+
+		if (bytes != null)
+		{
+			System.arraycopy(chunk, offset, bytes, size, length);
+		}
+		else
+		{
+			if (size + length > reservation.size())
+			{
+				// reserve ahead so the budget is not locked for every chunk
+				reserve(Math.max(size + length - reservation.size(), RESERVE_STEP));
+			}
+
+			segments.write(chunk, offset, length);
+		}
+
+		size += length;
+	}
+
+	/**
+	 * Reads data from the source into the buffer. Into a known length this reads straight into the array, otherwise
+	 * the segments of the source are moved into the buffer without being copied.
+	 *
+	 * @param source The source to read from
+	 * @param byteCount The maximum number of bytes to read
+	 * @return The number of bytes read, or -1 at the end of the source
+	 * @throws IOException if the source could not be read or the memory could not be reserved
+	 */
+	public long read(BufferedSource source, long byteCount) throws IOException
+	{
+		if (bytes != null && size < bytes.length)
+		{
+			int read = source.read(bytes, size, (int)Math.min(byteCount, bytes.length - size));
+			if (read > 0)
+			{
+				size += read;
+			}
+
+			return read;
+		}
+
+		if (bytes != null)
+		{
+			if (source.exhausted())
+			{
+				return -1;
+			}
+
+			moveToSegments();
+		}
+
+		if (size + byteCount > reservation.size())
+		{
+			reserve(Math.max(size + byteCount - reservation.size(), RESERVE_STEP));
+		}
+
+		long read = source.read(segments, byteCount);
+		if (read > 0)
+		{
+			size += read;
+		}
+
+		return read;
+	}
+
+	/**
+	 * Falls back to segments when the response is longer than the server said
+	 */
+	private void moveToSegments()
+	{
+		segments = new Buffer();
+		segments.write(bytes, 0, size);
+		bytes = null;
+	}
+
+	/**
+	 * Returns the memory reserved by the buffer to the {@link MemoryBudget}. The contents of the buffer can still
+	 * be read after this, but are no longer counted against the budget.
+	 */
+	public void release()
+	{
+		reservation.close();
+	}
+
+	private void reserve(long bytes) throws IOException
+	{
+		try
+		{
+			reservation.reserve(bytes);
+		}
+		catch (IOException e)
+		{
+			reservation.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The number of bytes written to the buffer
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return True if the data is held in a single array, false if it is held in segments
+	 */
+	public boolean isContiguous()
+	{
+		return bytes != null;
+	}
+
+	/**
+	 * Gets the contents of the buffer as a single array. If the buffer was created with the exact
+	 * length of the data, this is the backing array and no copy is made. This consumes the segments
+	 * of the buffer, so it should only be called once.
+	 *
+	 * @return The contents of the buffer
+	 */
+	public byte[] toByteArray()
+	{
+		if (bytes != null)
+		{
+			if (size != bytes.length)
+			{
+				// the response was shorter than the server said
+				bytes = Arrays.copyOf(bytes, size);
+			}
+
+			return bytes;
+		}
+
+		bytes = segments.readByteArray();
+		segments = null;
+
+		return bytes;
+	}
+
+	/**
+	 * Gets the contents of the buffer as a stream without making it contiguous first. The segments are shared
+	 * rather than copied, so this can be called more than once to read the contents again.
+	 *
+	 * @return The contents of the buffer as a stream
+	 */
+	public InputStream inputStream()
+	{
+		if (bytes != null)
+		{
+			return new ByteArrayInputStream(bytes, 0, size);
+		}
+
+		return segments.clone().inputStream();
+	}
+}
@@ -0,0 +1,250 @@
+package net.callumtaylor.asynchttp.obj;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Buffer which holds data in memory until it grows past a threshold, and then moves it to a temporary file.
+ * <p>
+ * In memory, the data is held as okio segments, so it is never copied into a growing array. Once the data has
+ * been written, it can be read any number of times with {@link #inputStream()}, {@link #source()} or
+ * {@link #map()}. {@link #release()} must be called when the data is no longer needed, to delete the file.
+ * <p>
+ * Memory is reserved from the {@link MemoryBudget} while the data is held in memory. If the budget is used up,
+ * the budget's policy decides whether the data is moved to the file early, waits for memory, or fails, with
+ * {@link MemoryBudget.Policy#SPILL} moving it to the file. Once the buffer is closed, its memory stays
+ * reserved until it is released, but no longer holds back the responses which are still being received.
+ */
+public class SpillBuffer
+{
+	private final File directory;
+	private final long threshold;
+	private final MemoryBudget.Reservation reservation;
+
+	private Buffer memory = new Buffer();
+	private File file;
+	private FileOutputStream fileStream;
+	private long size = 0;
+
+	/**
+	 * @param directory The directory to create the temporary file in
+	 * @param threshold The number of bytes which can be held in memory
+	 * @param expectedLength The length of the data if it is known, or -1. Data which is known to be larger than
+	 *                       the threshold is written straight to the file.
+	 * @throws IOException if the temporary file could not be created
+	 */
+	public SpillBuffer(File directory, long threshold, long expectedLength) throws IOException
+	{
+		this(directory, threshold, expectedLength, MemoryBudget.getDefault());
+	}
+
+	/**
+	 * @param directory The directory to create the temporary file in
+	 * @param threshold The number of bytes which can be held in memory
+	 * @param expectedLength The length of the data if it is known, or -1. Data which is known to be larger than
+	 *                       the threshold is written straight to the file.
+	 * @param budget The budget to reserve the memory from
+	 * @throws IOException if the temporary file could not be created
+	 */
+	public SpillBuffer(File directory, long threshold, long expectedLength, MemoryBudget budget) throws IOException
+	{
+		this.directory = directory;
+		this.threshold = threshold;
+		this.reservation = budget.open();
+
+		if (expectedLength > threshold)
+		{
+			spill();
+		}
+	}
+
+	public void write(byte[] data, int offset, int byteCount) throws IOException
+	{
+		if (fileStream == null && (size + byteCount > threshold || !reserve(byteCount)))
+		{
+			spill();
+		}
+
+		if (fileStream != null)
+		{
+			fileStream.write(data, offset, byteCount);
+		}
+		else
+		{
+			memory.write(data, offset, byteCount);
+		}
+
+		size += byteCount;
+	}
+
+	/**
+	 * Moves all of the data in the buffer into this buffer. The segments are moved rather than copied if they
+	 * are held in memory.
+	 */
+	public void write(Buffer source) throws IOException
+	{
+		long byteCount = source.size();
+
+		if (fileStream == null && (size + byteCount > threshold || !reserve(byteCount)))
+		{
+			spill();
+		}
+
+		if (fileStream != null)
+		{
+			source.writeTo(fileStream);
+		}
+		else
+		{
+			memory.write(source, byteCount);
+		}
+
+		size += byteCount;
+	}
+
+	/**
+	 * Finishes writing, and closes the file if the data was moved to one
+	 */
+	public void close() throws IOException
+	{
+		reservation.finish();
+
+		if (fileStream != null)
+		{
+			fileStream.close();
+			fileStream = null;
+		}
+	}
+
+	/**
+	 * @return The number of bytes in the buffer
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return True if the data was moved to a temporary file
+	 */
+	public boolean isSpilled()
+	{
+		return file != null;
+	}
+
+	/**
+	 * @return The temporary file holding the data, or null if it is held in memory
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return A new stream which reads the data from the start
+	 */
+	public InputStream inputStream() throws IOException
+	{
+		if (file != null)
+		{
+			return new FileInputStream(file);
+		}
+
+		// cloning shares the segments rather than copying them
+		return memory.clone().inputStream();
+	}
+
+	/**
+	 * @return A new source which reads the data from the start
+	 */
+	public BufferedSource source() throws IOException
+	{
+		if (file != null)
+		{
+			return Okio.buffer(Okio.source(file));
+		}
+
+		return memory.clone();
+	}
+
+	/**
+	 * Maps the data into a read-only byte buffer. Data in a file is memory mapped rather than read onto the heap,
+	 * data in memory is copied into a single array.
+	 *
+	 * @return The data
+	 */
+	public ByteBuffer map() throws IOException
+	{
+		if (file == null)
+		{
+			return ByteBuffer.wrap(memory.clone().readByteArray()).asReadOnlyBuffer();
+		}
+
+		RandomAccessFile mapFile = new RandomAccessFile(file, "r");
+
+		try
+		{
+			// the mapping stays valid after the file is closed
+			return mapFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		finally
+		{
+			mapFile.close();
+		}
+	}
+
+	/**
+	 * Releases the memory and deletes the temporary file
+	 */
+	public void release()
+	{
+		memory.clear();
+		reservation.close();
+
+		try
+		{
+			close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		if (file != null)
+		{
+			file.delete();
+		}
+	}
+
+	private void spill() throws IOException
+	{
+		file = File.createTempFile("response", ".tmp", directory);
+		fileStream = new FileOutputStream(file);
+
+		memory.writeTo(fileStream);
+		reservation.release(reservation.size());
+	}
+
+	private boolean reserve(long byteCount) throws IOException
+	{
+		try
+		{
+			return reservation.reserve(byteCount, true);
+		}
+		catch (IOException e)
+		{
+			release();
+			throw e;
+		}
+	}
+}
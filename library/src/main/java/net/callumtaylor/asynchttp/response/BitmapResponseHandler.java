@@ -2,28 +2,197 @@ package net.callumtaylor.asynchttp.response;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 
-import java.io.ByteArrayOutputStream;
+import net.callumtaylor.asynchttp.obj.BitmapCache;
+import net.callumtaylor.asynchttp.obj.BitmapPool;
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.Packet;
+import net.callumtaylor.asynchttp.obj.ResponseBuffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import okio.BufferedSource;
 
 /**
  * Convenience response handler class for receiving a bitmap stream.
+ * <p>
+ * If a target size is given, the image is downsampled while it is decoded, so a large photo shown as a
+ * thumbnail is never decoded at full resolution.
+ * <pre>
+	client.get("photo.jpg", new BitmapResponseHandler(200, 200, Bitmap.Config.RGB_565)
+	{
+		&#064;Override public void onSuccess()
+		{
+			imageView.setImageBitmap(getContent());
+		}
+	});
+ * </pre>
+ * The image is scaled down by the largest power of two which keeps it at least as large as the target size,
+ * so it may still be up to twice as large as the target in each dimension.
+ * <p>
+ * If a {@link BitmapCache} is given, images which are already cached are returned without a request, and the
+ * image is decoded into a bitmap from the cache's {@link BitmapPool} if there is one which can be reused. The
+ * bitmap should be given back with {@link BitmapCache#release} once it is no longer shown, so it can be reused.
  */
 public class BitmapResponseHandler extends ResponseHandler<Bitmap>
 {
-	private ByteArrayOutputStream byteBuffer;
+	private final int targetWidth;
+	private final int targetHeight;
+	private final Bitmap.Config config;
+	private final BitmapCache cache;
+
+	private String cacheKey;
+	private boolean loading = false;
+	private ResponseBuffer byteBuffer;
 	private Bitmap bitmap;
 
+	/**
+	 * Creates a handler which decodes the image at full size
+	 */
+	public BitmapResponseHandler()
+	{
+		this(0, 0, null);
+	}
+
+	/**
+	 * @param targetWidth The width the image will be shown at, or 0 for no limit
+	 * @param targetHeight The height the image will be shown at, or 0 for no limit
+	 */
+	public BitmapResponseHandler(int targetWidth, int targetHeight)
+	{
+		this(targetWidth, targetHeight, null);
+	}
+
+	/**
+	 * @param targetWidth The width the image will be shown at, or 0 for no limit
+	 * @param targetHeight The height the image will be shown at, or 0 for no limit
+	 * @param config The config to decode the image with, such as {@link Bitmap.Config#RGB_565} to halve the memory
+	 *               used by images without transparency, or null for the default
+	 */
+	public BitmapResponseHandler(int targetWidth, int targetHeight, Bitmap.Config config)
+	{
+		this(targetWidth, targetHeight, config, null);
+	}
+
+	/**
+	 * @param targetWidth The width the image will be shown at, or 0 for no limit
+	 * @param targetHeight The height the image will be shown at, or 0 for no limit
+	 * @param config The config to decode the image with, or null for the default
+	 * @param cache The cache to load the image from and store it in, or null
+	 */
+	public BitmapResponseHandler(int targetWidth, int targetHeight, Bitmap.Config config, BitmapCache cache)
+	{
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		this.config = config;
+		this.cache = cache;
+	}
+
+	public int getTargetWidth()
+	{
+		return targetWidth;
+	}
+
+	public int getTargetHeight()
+	{
+		return targetHeight;
+	}
+
+	/**
+	 * @return The key the image is cached with, made from the url and the decode settings
+	 */
+	protected String getCacheKey()
+	{
+		return getConnectionInfo().connectionUrl + "@" + targetWidth + "x" + targetHeight + (config == null ? "" : ":" + config.name());
+	}
+
+	/**
+	 * Uses the cached image if there is one, or waits for another handler already loading the same image. If that
+	 * takes longer than the {@link BitmapCache#getLoadTimeout() load timeout}, the image is downloaded instead.
+	 */
+	@Override public boolean onLoadCachedContent()
+	{
+		if (cache == null)
+		{
+			return false;
+		}
+
+		cacheKey = getCacheKey();
+
+		try
+		{
+			bitmap = cache.getOrStartLoading(cacheKey);
+		}
+		catch (InterruptedIOException e)
+		{
+			getConnectionInfo().responseError = e;
+			return true;
+		}
+
+		loading = bitmap == null;
+		return bitmap != null;
+	}
+
+	/**
+	 * Reads the response straight into the buffer rather than copying it into chunks first. Subclasses which
+	 * override {@link #onByteChunkReceived} are passed each chunk instead.
+	 */
+	@Override public void onReceiveSource(BufferedSource source, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		if (overridesByteChunkReceived(BitmapResponseHandler.class))
+		{
+			super.onReceiveSource(source, client, totalLength);
+			return;
+		}
+
+		byteBuffer = new ResponseBuffer(totalLength);
+
+		long len = 0;
+		long readCount = 0;
+		while ((len = byteBuffer.read(source, 8192)) > -1 && !client.isCancelled())
+		{
+			readCount += len;
+
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+
+		if (!client.isCancelled())
+		{
+			getConnectionInfo().responseLength = readCount;
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+
+		source.close();
+	}
+
 	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
 	{
-		if (byteBuffer == null)
+		if (getConnectionInfo().responseError != null)
 		{
-			int total = (int)(totalLength > Integer.MAX_VALUE ? Integer.MAX_VALUE : totalLength);
-			byteBuffer = new ByteArrayOutputStream(Math.max(8192, total));
+			return;
 		}
 
-		if (chunk != null)
+		try
+		{
+			if (byteBuffer == null)
+			{
+				byteBuffer = new ResponseBuffer(totalLength);
+			}
+
+			if (chunk != null)
+			{
+				byteBuffer.write(chunk, 0, (int)chunkLength);
+			}
+		}
+		catch (IOException e)
 		{
-			byteBuffer.write(chunk, 0, (int)chunkLength);
+			// the memory budget rejected the response
+			getConnectionInfo().responseError = e;
+			onReleaseBuffers();
+			e.printStackTrace();
 		}
 	}
 
@@ -32,8 +201,116 @@ public class BitmapResponseHandler extends ResponseHandler<Bitmap>
 	 */
 	@Override public void generateContent()
 	{
-		this.bitmap = BitmapFactory.decodeByteArray(byteBuffer.toByteArray(), 0, byteBuffer.size(), null);
-		this.byteBuffer = null;
+		if (byteBuffer != null && byteBuffer.size() > 0)
+		{
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			BitmapPool pool = cache == null ? null : cache.getPool();
+
+			if (targetWidth > 0 || targetHeight > 0 || pool != null)
+			{
+				// read only the header of the image to find its size
+				options.inJustDecodeBounds = true;
+				decode(options);
+				options.inJustDecodeBounds = false;
+
+				options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+			}
+
+			if (config != null)
+			{
+				options.inPreferredConfig = config;
+			}
+
+			if (pool != null && options.outWidth > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			{
+				int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+				int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+
+				// decoded bitmaps are mutable so they can be put in the pool once they are released from the cache
+				options.inMutable = true;
+				options.inBitmap = pool.get(width, height, options.inPreferredConfig, options.inSampleSize);
+			}
+
+			try
+			{
+				this.bitmap = decode(options);
+			}
+			catch (IllegalArgumentException e)
+			{
+				if (options.inBitmap == null)
+				{
+					throw e;
+				}
+
+				// the pooled bitmap could not be reused for this image
+				options.inBitmap.recycle();
+				options.inBitmap = null;
+
+				this.bitmap = decode(options);
+			}
+		}
+
+		onReleaseBuffers();
+	}
+
+	/**
+	 * Decodes the buffer without copying it
+	 */
+	private Bitmap decode(BitmapFactory.Options options)
+	{
+		if (byteBuffer.isContiguous())
+		{
+			return BitmapFactory.decodeByteArray(byteBuffer.toByteArray(), 0, byteBuffer.size(), options);
+		}
+
+		// decode from the segments so the buffer is never made contiguous
+		return BitmapFactory.decodeStream(byteBuffer.inputStream(), null, options);
+	}
+
+	/**
+	 * Calculates the sample size to decode an image at, which is the largest power of two that keeps the image at
+	 * least as large as the target size
+	 *
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param targetWidth The target width, or 0 for no limit
+	 * @param targetHeight The target height, or 0 for no limit
+	 * @return The sample size, 1 to decode at full size
+	 */
+	public static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight)
+	{
+		int sampleSize = 1;
+
+		if (width <= 0 || height <= 0)
+		{
+			return sampleSize;
+		}
+
+		while ((targetWidth <= 0 || width / (sampleSize * 2) >= targetWidth)
+			&& (targetHeight <= 0 || height / (sampleSize * 2) >= targetHeight)
+			&& (targetWidth > 0 || targetHeight > 0))
+		{
+			sampleSize *= 2;
+		}
+
+		return sampleSize;
+	}
+
+	@Override public void onReleaseBuffers()
+	{
+		if (byteBuffer != null)
+		{
+			byteBuffer.release();
+			byteBuffer = null;
+		}
+
+		if (loading)
+		{
+			loading = false;
+
+			boolean success = getConnectionInfo().responseError == null && getConnectionInfo().responseCode < 400;
+			cache.finishLoading(cacheKey, success ? bitmap : null);
+		}
 	}
 
 	/**
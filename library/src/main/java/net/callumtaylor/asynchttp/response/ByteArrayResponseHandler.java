@@ -1,33 +1,95 @@
 package net.callumtaylor.asynchttp.response;
 
-import java.io.ByteArrayOutputStream;
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.Packet;
+import net.callumtaylor.asynchttp.obj.ResponseBuffer;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import okio.BufferedSource;
 
 public class ByteArrayResponseHandler extends ResponseHandler<byte[]>
 {
-	private ByteArrayOutputStream byteBuffer;
+	private ResponseBuffer byteBuffer;
 	private byte[] bytes;
 
+	/**
+	 * Reads the response straight into the buffer rather than copying it into chunks first. Subclasses which
+	 * override {@link #onByteChunkReceived} are passed each chunk instead.
+	 */
+	@Override public void onReceiveSource(BufferedSource source, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		if (overridesByteChunkReceived(ByteArrayResponseHandler.class))
+		{
+			super.onReceiveSource(source, client, totalLength);
+			return;
+		}
+
+		byteBuffer = new ResponseBuffer(totalLength);
+
+		long len = 0;
+		long readCount = 0;
+		while ((len = byteBuffer.read(source, 8192)) > -1 && !client.isCancelled())
+		{
+			readCount += len;
+
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+
+		if (!client.isCancelled())
+		{
+			getConnectionInfo().responseLength = readCount;
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+
+		source.close();
+	}
+
 	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
 	{
-		if (byteBuffer == null)
+		if (getConnectionInfo().responseError != null)
 		{
-			int total = (int)(totalLength > Integer.MAX_VALUE ? Integer.MAX_VALUE : totalLength);
-			byteBuffer = new ByteArrayOutputStream(Math.max(8192, total));
+			return;
 		}
 
-		if (chunk != null)
+		try
 		{
-			byteBuffer.write(chunk, 0, (int)chunkLength);
+			if (byteBuffer == null)
+			{
+				byteBuffer = new ResponseBuffer(totalLength);
+			}
+
+			if (chunk != null)
+			{
+				byteBuffer.write(chunk, 0, (int)chunkLength);
+			}
+		}
+		catch (IOException e)
+		{
+			// the memory budget rejected the response
+			getConnectionInfo().responseError = e;
+			onReleaseBuffers();
+			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Generate the bitmap from the buffer and remove it to allow the GC to clean up properly
+	 * Generate the byte array from the buffer and remove it to allow the GC to clean up properly
 	 */
 	@Override public void generateContent()
 	{
-		this.bytes = byteBuffer.toByteArray();
-		this.byteBuffer = null;
+		this.bytes = byteBuffer == null ? new byte[0] : byteBuffer.toByteArray();
+		onReleaseBuffers();
+	}
+
+	@Override public void onReleaseBuffers()
+	{
+		if (byteBuffer != null)
+		{
+			byteBuffer.release();
+			byteBuffer = null;
+		}
 	}
 
 	/**
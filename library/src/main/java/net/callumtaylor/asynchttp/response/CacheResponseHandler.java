@@ -1,54 +1,306 @@
 package net.callumtaylor.asynchttp.response;
 
-import java.io.BufferedOutputStream;
+import net.callumtaylor.asynchttp.obj.AsyncFileWriter;
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.Packet;
+
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.internal.Util;
+import okio.Buffer;
+import okio.BufferedSource;
 
 /**
  * Caches the response directly to disk. Useful when downloading
  * large files. <b>note</b> This will delete any existing files
- * with the same file name
+ * with the same file name, unless the download is resumable.
+ * <p>
+ * The response is written to a <code>.part</code> file on a separate I/O thread, see {@link AsyncFileWriter}, and
+ * renamed to the file once it has been received in full, so the file is never seen partially written. If the
+ * response can not be written, the request fails with the error in {@link net.callumtaylor.asynchttp.obj.ConnectionInfo#responseError}.
+ * <p>
+ * Resumable downloads keep the <code>.part</code> file along with a <code>.meta</code> file holding the validator
+ * (<code>ETag</code> or <code>Last-Modified</code>) and length of the response. When the download is
+ * made again with the same handler settings, it sends <code>Range</code> and <code>If-Range</code>
+ * and appends to the partial file. If the server ignores the range, or the file has changed, it
+ * responds with the whole file and the partial file is replaced.
+ * <pre>
+	client.get("large.zip", new CacheResponseHandler(path, true));
+ * </pre>
  */
 public class CacheResponseHandler extends ResponseHandler<File>
 {
+	private static final String META_SUFFIX = ".meta";
+	static final String PART_SUFFIX = ".part";
+
 	private final File mFile;
-	private BufferedOutputStream fos;
+	private final File partFile;
+	private final File metaFile;
+	private final boolean resumable;
+	private AsyncFileWriter.SyncPolicy syncPolicy = AsyncFileWriter.SyncPolicy.ON_COMPLETE;
+	private AsyncFileWriter writer;
+	private boolean outputPrepared = false;
+	private long resumeOffset = 0;
 
 	public CacheResponseHandler(String filePath)
 	{
-		mFile = new File(filePath);
+		this(filePath, false);
+	}
+
+	/**
+	 * @param filePath The path to save the response to
+	 * @param resumable True to resume from a partial download of the same url, if there is one
+	 */
+	public CacheResponseHandler(String filePath, boolean resumable)
+	{
+		this.mFile = new File(filePath);
+		this.partFile = new File(filePath + PART_SUFFIX);
+		this.metaFile = new File(filePath + META_SUFFIX);
+		this.resumable = resumable;
 
-		if (mFile.exists())
+		if (!resumable && mFile.exists())
 		{
 			mFile.delete();
 		}
+	}
+
+	/**
+	 * Sets when the file is synced to the storage device. Defaults to {@link AsyncFileWriter.SyncPolicy#ON_COMPLETE}
+	 *
+	 * @param syncPolicy The sync policy
+	 */
+	public void setSyncPolicy(AsyncFileWriter.SyncPolicy syncPolicy)
+	{
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * Adds the range of the missing part of the file to the request, if a partial download exists
+	 */
+	@Override public void onBeforeRequest(Request.Builder request)
+	{
+		resumeOffset = 0;
+		outputPrepared = false;
+
+		if (!resumable)
+		{
+			return;
+		}
+
+		// the range is of the encoded bytes, so the response must not be compressed
+		request.header("Accept-Encoding", "identity");
+
+		Properties meta = readMeta();
+		String validator = meta.getProperty("validator");
+
+		if (validator != null && partFile.exists() && partFile.length() > 0
+			&& getConnectionInfo().connectionUrl.equals(meta.getProperty("url")))
+		{
+			resumeOffset = partFile.length();
+			request.header("Range", "bytes=" + resumeOffset + "-");
+			request.header("If-Range", validator);
+		}
+	}
+
+	/**
+	 * Opens the partial file at the position the response starts at. A partial response is appended to the file,
+	 * any other successful response replaces it.
+	 */
+	private void prepareOutput()
+	{
+		if (outputPrepared)
+		{
+			return;
+		}
+
+		outputPrepared = true;
+
+		int responseCode = getConnectionInfo().responseCode;
+		Headers headers = getConnectionInfo().responseHeaders;
+		long start = 0;
+
+		if (resumable)
+		{
+			if (responseCode == 206)
+			{
+				start = parseRangeStart(headers == null ? null : headers.get("Content-Range"));
+				if (start < 0 || start > partFile.length())
+				{
+					return;
+				}
+			}
+			else if (responseCode < 200 || responseCode >= 300)
+			{
+				return;
+			}
+		}
+
+		resumeOffset = start;
 
 		try
 		{
-			mFile.createNewFile();
-			fos = new BufferedOutputStream(new FileOutputStream(mFile));
+			writeMeta(headers, start);
+			writer = new AsyncFileWriter(partFile, mFile, start, syncPolicy);
+		}
+		catch (Exception e)
+		{
+			getConnectionInfo().responseError = e;
+			e.printStackTrace();
 		}
-		catch (Exception e){}
 	}
 
-	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+	/**
+	 * Moves the segments of the response straight to the writer rather than copying them into
+	 * chunks first. Subclasses which override {@link #onByteChunkReceived} are passed each chunk instead.
+	 */
+	@Override public void onReceiveSource(BufferedSource source, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
 	{
-		if (chunk != null && fos != null)
+		prepareOutput();
+
+		if (writer == null || overridesByteChunkReceived(CacheResponseHandler.class))
+		{
+			super.onReceiveSource(source, client, totalLength);
+			return;
+		}
+
+		// progress is reported through the whole file, including the part from the previous download
+		long offset = resumeOffset;
+		long fileLength = totalLength > -1 ? offset + totalLength : -1;
+
+		Buffer buffer = new Buffer();
+
+		long len = 0;
+		long readCount = 0;
+		try
 		{
-			try
+			while ((len = source.read(buffer, AsyncFileWriter.DEFAULT_BUFFER_SIZE)) > -1 && !client.isCancelled())
 			{
-				fos.write(chunk, 0, (int)chunkLength);
+				writer.write(buffer);
+
+				readCount += len;
+
+				client.transferProgress(new Packet(offset + readCount, fileLength, true));
 			}
-			catch (Exception e){}
+		}
+		catch (IOException e)
+		{
+			abortWriter();
+			throw e;
+		}
+
+		if (!client.isCancelled())
+		{
+			getConnectionInfo().responseLength = readCount;
+
+			// we fake the content length, because it can be -1
+			onByteChunkReceived(null, readCount, readCount, readCount);
+
+			client.transferProgress(new Packet(offset + readCount, fileLength, true));
 		}
 		else
 		{
-			try
+			abortWriter();
+		}
+
+		source.close();
+	}
+
+	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+	{
+		prepareOutput();
+
+		if (writer == null)
+		{
+			return;
+		}
+
+		try
+		{
+			if (chunk != null)
 			{
-				fos.flush();
-				fos.close();
+				writer.write(chunk, 0, (int)chunkLength);
 			}
-			catch (Exception e){}
+			else
+			{
+				finish();
+			}
+		}
+		catch (IOException e)
+		{
+			getConnectionInfo().responseError = e;
+			e.printStackTrace();
+
+			abortWriter();
+		}
+	}
+
+	/**
+	 * Closes the writer if the response did not finish, for example if reading it failed part way
+	 */
+	@Override public void onReleaseBuffers()
+	{
+		if (writer != null)
+		{
+			abortWriter();
+		}
+	}
+
+	/**
+	 * Deletes the partial file and its meta file, so a rejected download is not resumed by the next request
+	 */
+	@Override public void onDiscardContent()
+	{
+		abortWriter();
+
+		partFile.delete();
+		metaFile.delete();
+	}
+
+	/**
+	 * Closes the writer without renaming the partial file. The partial file is kept if the download can be
+	 * resumed, otherwise it is deleted.
+	 */
+	private void abortWriter()
+	{
+		if (writer != null)
+		{
+			writer.abort();
+			writer = null;
+		}
+
+		if (!resumable)
+		{
+			partFile.delete();
+		}
+	}
+
+	/**
+	 * Renames the partial file to the file if it is complete
+	 */
+	private void finish() throws IOException
+	{
+		long expectedLength = resumable ? parseLength(readMeta().getProperty("length")) : -1;
+
+		if (expectedLength > -1 && writer.length() != expectedLength)
+		{
+			abortWriter();
+
+			throw new IOException("Response ended at " + partFile.length() + " of " + expectedLength + " bytes");
+		}
+
+		writer.commit();
+		writer = null;
+
+		if (resumable)
+		{
+			metaFile.delete();
 		}
 	}
 
@@ -57,6 +309,42 @@ public class CacheResponseHandler extends ResponseHandler<File>
 		// nothing to do here
 	}
 
+	/**
+	 * Saves an empty file for a successful response with no body, which is never passed to
+	 * {@link #onReceiveSource}.
+	 * <p>
+	 * Clears a partial download the server refused to resume with a 416, otherwise every retry would send the
+	 * same range. If the partial file is already the full length, it is renamed to the file instead.
+	 */
+	@Override public void beforeResponse()
+	{
+		int responseCode = getConnectionInfo().responseCode;
+		if (!outputPrepared && responseCode >= 200 && responseCode < 300 && getConnectionInfo().responseError == null)
+		{
+			onByteChunkReceived(null, 0, 0, 0);
+			return;
+		}
+
+		if (!resumable || resumeOffset == 0 || getConnectionInfo().responseCode != 416)
+		{
+			return;
+		}
+
+		long expectedLength = parseLength(readMeta().getProperty("length"));
+		if (expectedLength > -1 && partFile.length() == expectedLength)
+		{
+			mFile.delete();
+			if (partFile.renameTo(mFile))
+			{
+				metaFile.delete();
+				return;
+			}
+		}
+
+		partFile.delete();
+		metaFile.delete();
+	}
+
 	/**
 	 * Processes the response from the stream.
 	 * This is <b>not</b> ran on the UI thread
@@ -67,4 +355,139 @@ public class CacheResponseHandler extends ResponseHandler<File>
 	{
 		return mFile;
 	}
+
+	/**
+	 * @return The start of the range in a <code>Content-Range</code> header, for example 100 in
+	 * <code>bytes 100-199/200</code>, or -1 if the header is missing or invalid
+	 */
+	private static long parseRangeStart(String contentRange)
+	{
+		if (contentRange == null || !contentRange.startsWith("bytes "))
+		{
+			return -1;
+		}
+
+		try
+		{
+			int dash = contentRange.indexOf('-');
+			return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+		}
+		catch (Exception e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The total length in a <code>Content-Range</code> header, or -1 if it is unknown
+	 */
+	static long parseRangeLength(String contentRange)
+	{
+		return parseLength(contentRange.substring(contentRange.indexOf('/') + 1));
+	}
+
+	/**
+	 * @return The length, or -1 if it is missing or invalid
+	 */
+	private static long parseLength(String length)
+	{
+		try
+		{
+			return length == null ? -1 : Math.max(-1, Long.parseLong(length.trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private Properties readMeta()
+	{
+		Properties meta = new Properties();
+		FileInputStream stream = null;
+
+		try
+		{
+			if (metaFile.exists())
+			{
+				stream = new FileInputStream(metaFile);
+				meta.load(stream);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			Util.closeQuietly(stream);
+		}
+
+		return meta;
+	}
+
+	/**
+	 * Saves the validator and length of the response before any of it is written, so a partial
+	 * file can always be resumed
+	 */
+	private void writeMeta(Headers headers, long start) throws IOException
+	{
+		if (!resumable)
+		{
+			return;
+		}
+
+		String validator = null;
+		long length = -1;
+
+		if (headers != null)
+		{
+			String etag = headers.get("ETag");
+
+			// If-Range only works with strong validators
+			if (etag != null && !etag.startsWith("W/"))
+			{
+				validator = etag;
+			}
+			else
+			{
+				validator = headers.get("Last-Modified");
+			}
+
+			if (headers.get("Content-Range") != null)
+			{
+				length = parseRangeLength(headers.get("Content-Range"));
+			}
+			else if (parseLength(headers.get("Content-Length")) > -1)
+			{
+				length = start + parseLength(headers.get("Content-Length"));
+			}
+		}
+
+		if (validator == null)
+		{
+			metaFile.delete();
+			return;
+		}
+
+		Properties meta = new Properties();
+		meta.setProperty("url", getConnectionInfo().connectionUrl);
+		meta.setProperty("validator", validator);
+
+		if (length > -1)
+		{
+			meta.setProperty("length", String.valueOf(length));
+		}
+
+		FileOutputStream stream = new FileOutputStream(metaFile);
+
+		try
+		{
+			meta.store(stream, null);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
 }
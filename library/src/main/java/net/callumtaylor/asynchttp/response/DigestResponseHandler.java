@@ -0,0 +1,488 @@
+package net.callumtaylor.asynchttp.response;
+
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.ConnectionInfo;
+import net.callumtaylor.asynchttp.obj.Crc32c;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+import okhttp3.Headers;
+import okhttp3.Request;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Wraps another response handler to calculate a digest of the response while it is received, and fail the
+ * request if it does not match. This saves reading a downloaded file a second time to check it.
+ * <pre>
+	client.get("firmware.bin", new DigestResponseHandler&lt;File&gt;(new CacheResponseHandler(path), DigestResponseHandler.Algorithm.SHA_256, expectedHex)
+	{
+		&#064;Override public void onFailure()
+		{
+			// getConnectionInfo().responseError describes the mismatch, and the file has been deleted
+		}
+	});
+ * </pre>
+ * The digest is checked against the expected digest if one is given, otherwise against the <code>Digest</code>
+ * header (or <code>Content-MD5</code> for MD5) of the response. Headers are only checked if the response was not
+ * content encoded, as they describe the encoded bytes. Partial responses which do not start at the beginning of
+ * the content, such as resumed downloads, can not be checked, and neither can {@link SegmentedCacheResponseHandler}
+ * as it does not read its segments through the handler in order.
+ * <p>
+ * The digest is checked as the wrapped handler reaches the end of the response, before it sees the end, so a
+ * {@link CacheResponseHandler} never renames a file which does not match into place. Handlers which stop reading
+ * early, such as parsers which do not read past the end of their value, have the rest of the response read into
+ * the digest once they have finished with it, unless the request was cancelled.
+ * <p>
+ * If the digest does not match, the error is set in {@link ConnectionInfo#responseError}, which fails the request,
+ * and if the content of the handler is a file, it is deleted. Once the wrapped handler has released its buffers it
+ * is told to discard what it saved with {@link ResponseHandler#onDiscardContent()}, so a resumable
+ * {@link CacheResponseHandler} does not resume from the data which did not match.
+ */
+public class DigestResponseHandler<E> extends ResponseHandler<E>
+{
+	public enum Algorithm
+	{
+		SHA_256("SHA-256"),
+		MD5("MD5"),
+		CRC32C("CRC32c");
+
+		private String headerName;
+		private Algorithm(String headerName)
+		{
+			this.headerName = headerName;
+		}
+
+		/**
+		 * @return The name of the algorithm in the <code>Digest</code> header
+		 */
+		public String getHeaderName()
+		{
+			return headerName;
+		}
+	}
+
+	protected final ResponseHandler<E> handler;
+	protected final Algorithm algorithm;
+	protected final ByteString expected;
+
+	private MessageDigest messageDigest;
+	private Checksum checksum;
+	private ByteString digest;
+	private boolean verified = false;
+	private boolean ended = false;
+	private boolean pendingVerify = false;
+	private boolean mismatched = false;
+	private ClientTaskImpl client;
+	private Source digestingSource;
+
+	/**
+	 * Creates a handler which checks the digest against the headers of the response
+	 *
+	 * @param handler The handler to pass the response to
+	 * @param algorithm The digest algorithm
+	 */
+	public DigestResponseHandler(ResponseHandler<E> handler, Algorithm algorithm)
+	{
+		this(handler, algorithm, null);
+	}
+
+	/**
+	 * @param handler The handler to pass the response to
+	 * @param algorithm The digest algorithm
+	 * @param expectedHex The expected digest as a hex string. CRC32C checksums are 4 bytes, big endian.
+	 */
+	public DigestResponseHandler(ResponseHandler<E> handler, Algorithm algorithm, String expectedHex)
+	{
+		this.handler = handler;
+		this.algorithm = algorithm;
+		this.expected = expectedHex == null ? null : ByteString.decodeHex(expectedHex.toLowerCase());
+	}
+
+	/**
+	 * @return The digest of the response, or null if it has not been received in full
+	 */
+	public ByteString getDigest()
+	{
+		return digest;
+	}
+
+	/**
+	 * @return True if the digest was checked and matched
+	 */
+	public boolean isVerified()
+	{
+		return verified;
+	}
+
+	@Override public ConnectionInfo getConnectionInfo()
+	{
+		return handler.getConnectionInfo();
+	}
+
+	@Override public void onSend()
+	{
+		handler.onSend();
+	}
+
+	@Override public void onBeforeRequest(Request.Builder request)
+	{
+		handler.onBeforeRequest(request);
+	}
+
+	/**
+	 * Content loaded from a cache is not received, so its digest is not checked
+	 */
+	@Override public boolean onLoadCachedContent()
+	{
+		return handler.onLoadCachedContent();
+	}
+
+	/**
+	 * Updates the digest as the wrapped handler reads the source. The digest is checked when the handler reaches
+	 * the end of the source, before it sees the end, so a handler which commits its content at the end of the
+	 * response, such as {@link CacheResponseHandler}, fails instead of committing content which does not match.
+	 */
+	@Override public void onReceiveSource(BufferedSource source, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		reset();
+		this.client = client;
+
+		final OutputStream digestStream = new OutputStream()
+		{
+			@Override public void write(int b)
+			{
+				update(new byte[]{(byte)b}, 0, 1);
+			}
+
+			@Override public void write(byte[] b, int off, int len)
+			{
+				update(b, off, len);
+			}
+		};
+
+		digestingSource = new ForwardingSource(source)
+		{
+			@Override public long read(Buffer sink, long byteCount) throws IOException
+			{
+				long len = super.read(sink, byteCount);
+				if (len > 0)
+				{
+					sink.copyTo(digestStream, sink.size() - len, len);
+				}
+				else if (len == -1 && !ended)
+				{
+					ended = true;
+
+					if (!verify())
+					{
+						throw (IOException)getConnectionInfo().responseError;
+					}
+				}
+
+				return len;
+			}
+
+			@Override public void close()
+			{
+				// the response is closed by the client, the rest of it may still be needed for the digest
+			}
+		};
+
+		handler.onReceiveSource(Okio.buffer(digestingSource), client, totalLength);
+
+		// stream handlers read the source in generateContent, and may stop before the end of it
+		pendingVerify = !client.isCancelled() && !ended;
+	}
+
+	/**
+	 * The digest is updated from either, so this is the same as the wrapped handler
+	 */
+	@Override public boolean readsSource()
+	{
+		return handler.readsSource();
+	}
+
+	@Override public void onReceiveStream(InputStream stream, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		onReceiveSource(Okio.buffer(Okio.source(stream)), client, totalLength);
+	}
+
+	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+	{
+		if (totalProcessed == 0 && chunk != null)
+		{
+			reset();
+		}
+
+		if (chunk != null)
+		{
+			update(chunk, 0, (int)chunkLength);
+		}
+		else if (!ended)
+		{
+			// checked before the handler is told the response has ended, so it is not committed if it does not match
+			ended = true;
+
+			if (!verify())
+			{
+				return;
+			}
+		}
+
+		handler.onByteChunkReceived(chunk, chunkLength, totalProcessed, totalLength);
+	}
+
+	@Override public void onByteChunkReceivedProcessed(long totalProcessed, long totalLength)
+	{
+		handler.onByteChunkReceivedProcessed(totalProcessed, totalLength);
+	}
+
+	@Override public void onByteChunkSent(long chunkLength, long totalProcessed, long totalLength)
+	{
+		handler.onByteChunkSent(chunkLength, totalProcessed, totalLength);
+	}
+
+	@Override public boolean observeSentChunks()
+	{
+		return handler.observeSentChunks();
+	}
+
+	@Override public void onByteChunkSent(ByteString chunk, long totalProcessed, long totalLength)
+	{
+		handler.onByteChunkSent(chunk, totalProcessed, totalLength);
+	}
+
+	@Override public void onUncompressedBytesSent(long totalProcessed, long totalLength)
+	{
+		handler.onUncompressedBytesSent(totalProcessed, totalLength);
+	}
+
+	@Override public void onByteChunkSentProcessed(long totalProcessed, long totalLength)
+	{
+		handler.onByteChunkSentProcessed(totalProcessed, totalLength);
+	}
+
+	@Override public void beforeResponse()
+	{
+		handler.beforeResponse();
+	}
+
+	@Override public void generateContent()
+	{
+		handler.generateContent();
+	}
+
+	/**
+	 * Checks the digest if the wrapped handler stopped reading before the end of the response, such as a parser which
+	 * stops at the end of the value it was reading. The rest of the response is read into the digest first, once the
+	 * handler has released the source. Nothing is checked if the request was cancelled or had already failed.
+	 * <p>
+	 * If the digest did not match, the wrapped handler is then told to discard its content, as it has stopped
+	 * writing it by now.
+	 */
+	@Override public void onReleaseBuffers()
+	{
+		handler.onReleaseBuffers();
+
+		if (pendingVerify)
+		{
+			pendingVerify = false;
+			readRemaining();
+		}
+
+		if (mismatched)
+		{
+			handler.onDiscardContent();
+		}
+	}
+
+	@Override public void onDiscardContent()
+	{
+		handler.onDiscardContent();
+	}
+
+	/**
+	 * Reads the rest of the response into the digest, which checks it at the end
+	 */
+	private void readRemaining()
+	{
+		if (ended || client == null || client.isCancelled() || getConnectionInfo().responseError != null)
+		{
+			return;
+		}
+
+		try
+		{
+			Buffer buffer = new Buffer();
+			while (!ended && digestingSource.read(buffer, 8192) > -1)
+			{
+				buffer.clear();
+			}
+		}
+		catch (IOException e)
+		{
+			// a mismatch has already been set as the error
+			if (getConnectionInfo().responseError == null)
+			{
+				getConnectionInfo().responseError = e;
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override public E getContent()
+	{
+		return handler.getContent();
+	}
+
+	@Override public void onSuccess()
+	{
+		handler.onSuccess();
+	}
+
+	@Override public void onFailure()
+	{
+		handler.onFailure();
+	}
+
+	@Override public void beforeFinish()
+	{
+		handler.beforeFinish();
+	}
+
+	@Override public void onFinish()
+	{
+		handler.onFinish();
+	}
+
+	private void reset()
+	{
+		digest = null;
+		verified = false;
+		ended = false;
+		pendingVerify = false;
+		mismatched = false;
+
+		if (algorithm == Algorithm.CRC32C)
+		{
+			checksum = new Crc32c();
+			return;
+		}
+
+		try
+		{
+			messageDigest = MessageDigest.getInstance(algorithm.getHeaderName());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void update(byte[] data, int offset, int length)
+	{
+		if (checksum != null)
+		{
+			checksum.update(data, offset, length);
+		}
+		else if (messageDigest != null)
+		{
+			messageDigest.update(data, offset, length);
+		}
+	}
+
+	/**
+	 * Finishes the digest and compares it to the expected digest
+	 *
+	 * @return False if the digest did not match, in which case the error has been set in the connection info
+	 */
+	private boolean verify()
+	{
+		if (checksum == null && messageDigest == null)
+		{
+			reset();
+		}
+
+		if (checksum != null)
+		{
+			long value = checksum.getValue();
+			digest = ByteString.of((byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value);
+		}
+		else
+		{
+			digest = ByteString.of(messageDigest.digest());
+		}
+
+		// a partial response only has part of the content, so its digest can not be compared
+		Headers headers = getConnectionInfo().responseHeaders;
+		String contentRange = headers == null ? null : headers.get("Content-Range");
+		if (contentRange != null && !contentRange.startsWith("bytes 0-"))
+		{
+			return true;
+		}
+
+		ByteString expectedDigest = expected != null ? expected : headerDigest(headers);
+		if (expectedDigest == null)
+		{
+			return true;
+		}
+
+		verified = expectedDigest.equals(digest);
+
+		if (!verified)
+		{
+			mismatched = true;
+			getConnectionInfo().responseError = new IOException(algorithm.getHeaderName() + " digest mismatch, expected " + expectedDigest.hex() + " but was " + digest.hex());
+
+			if (getContent() instanceof File)
+			{
+				((File)getContent()).delete();
+			}
+		}
+
+		return verified;
+	}
+
+	/**
+	 * @return The digest from the response headers, or null if there is none or it can not be checked
+	 */
+	private ByteString headerDigest(Headers headers)
+	{
+		String encoding = headers == null ? null : headers.get("Content-Encoding");
+		if (headers == null || (encoding != null && !"identity".equalsIgnoreCase(encoding)))
+		{
+			return null;
+		}
+
+		for (String value : headers.values("Digest"))
+		{
+			for (String entry : value.split(","))
+			{
+				int separator = entry.indexOf('=');
+				if (separator > 0 && entry.substring(0, separator).trim().equalsIgnoreCase(algorithm.getHeaderName()))
+				{
+					return ByteString.decodeBase64(entry.substring(separator + 1).trim());
+				}
+			}
+		}
+
+		if (algorithm == Algorithm.MD5 && headers.get("Content-MD5") != null)
+		{
+			return ByteString.decodeBase64(headers.get("Content-MD5").trim());
+		}
+
+		return null;
+	}
+}
@@ -3,6 +3,8 @@ package net.callumtaylor.asynchttp.response;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import net.callumtaylor.asynchttp.obj.GsonRegistry;
+
 import java.io.IOException;
 import java.lang.reflect.Type;
 
@@ -16,11 +18,18 @@ public class GsonResponseHandler<T> extends StreamResponseHandler<T>
 	private T content;
 	private Gson gson;
 
+	/**
+	 * Uses the shared default Gson instance from {@link GsonRegistry}
+	 */
 	public GsonResponseHandler(Type outClass)
 	{
-		this(new Gson(), outClass);
+		this(GsonRegistry.getDefault(), outClass);
 	}
 
+	/**
+	 * Creates a new Gson instance for this handler. Prefer registering the configuration with
+	 * {@link GsonRegistry} so the instance and its type adapters are shared between requests.
+	 */
 	public GsonResponseHandler(GsonBuilder builder, Type outClass)
 	{
 		this(builder.create(), outClass);
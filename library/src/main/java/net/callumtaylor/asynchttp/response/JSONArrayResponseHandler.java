@@ -1,55 +1,54 @@
-
 package net.callumtaylor.asynchttp.response;
 
+import com.google.gson.stream.JsonReader;
+
+import net.callumtaylor.asynchttp.obj.OrgJsonReader;
+
 import org.json.JSONArray;
 
+import java.io.IOException;
+
 /**
- * This uses the standard JSON parser which is bundled with Android.
+ * This uses the standard JSON types which are bundled with Android.
+ * <p>
+ * The response is tokenised with a Gson {@link JsonReader} as it streams in, and built straight into a
+ * {@link JSONArray}, so it is never collected into a string first.
  *
  * This is <b>not</b> the same as {@link JsonResponseHandler}
  */
-public class JSONArrayResponseHandler extends ResponseHandler<JSONArray>
+public class JSONArrayResponseHandler extends StreamResponseHandler<JSONArray>
 {
-	private StringBuffer stringBuffer;
 	private JSONArray content;
 
-	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+	/**
+	 * Generate the JSONArray from the stream
+	 */
+	@Override public void generateContent()
 	{
-		if (stringBuffer == null)
+		JsonReader jsonReader = new JsonReader(reader);
+		jsonReader.setLenient(true);
+
+		try
 		{
-			int total = (int)(totalLength > Integer.MAX_VALUE ? Integer.MAX_VALUE : totalLength);
-			stringBuffer = new StringBuffer(Math.max(8192, total));
+			this.content = OrgJsonReader.readArray(jsonReader);
 		}
-
-		if (chunk != null)
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		finally
 		{
 			try
 			{
-				stringBuffer.append(new String(chunk, 0, (int)chunkLength, "UTF-8"));
+				jsonReader.close();
 			}
-			catch (Exception e)
+			catch (IOException e)
 			{
 				e.printStackTrace();
 			}
 		}
 	}
 
-	/**
-	 * Generate the JSONArray from the buffer and remove it to allow the GC to clean up properly
-	 */
-	@Override public void generateContent()
-	{
-		try
-		{
-			this.content = new JSONArray(stringBuffer.toString());
-			this.stringBuffer = null;
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();;
-		}
-	}
-
 	/**
 	 * @return The data represented as a JSONArray primitive type
 	 */
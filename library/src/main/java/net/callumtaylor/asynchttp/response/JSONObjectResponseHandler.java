@@ -1,55 +1,54 @@
-
 package net.callumtaylor.asynchttp.response;
 
+import com.google.gson.stream.JsonReader;
+
+import net.callumtaylor.asynchttp.obj.OrgJsonReader;
+
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
- * This uses the standard JSON parser which is bundled with Android.
+ * This uses the standard JSON types which are bundled with Android.
+ * <p>
+ * The response is tokenised with a Gson {@link JsonReader} as it streams in, and built straight into a
+ * {@link JSONObject}, so it is never collected into a string first.
  *
  * This is <b>not</b> the same as {@link JsonResponseHandler}
  */
-public class JSONObjectResponseHandler extends ResponseHandler<JSONObject>
+public class JSONObjectResponseHandler extends StreamResponseHandler<JSONObject>
 {
-	private StringBuffer stringBuffer;
 	private JSONObject content;
 
-	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+	/**
+	 * Generate the JSONObject from the stream
+	 */
+	@Override public void generateContent()
 	{
-		if (stringBuffer == null)
+		JsonReader jsonReader = new JsonReader(reader);
+		jsonReader.setLenient(true);
+
+		try
 		{
-			int total = (int)(totalLength > Integer.MAX_VALUE ? Integer.MAX_VALUE : totalLength);
-			stringBuffer = new StringBuffer(Math.max(8192, total));
+			this.content = OrgJsonReader.readObject(jsonReader);
 		}
-
-		if (chunk != null)
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		finally
 		{
 			try
 			{
-				stringBuffer.append(new String(chunk, 0, (int)chunkLength, "UTF-8"));
+				jsonReader.close();
 			}
-			catch (Exception e)
+			catch (IOException e)
 			{
 				e.printStackTrace();
 			}
 		}
 	}
 
-	/**
-	 * Generate the JSONObject from the buffer and remove it to allow the GC to clean up properly
-	 */
-	@Override public void generateContent()
-	{
-		try
-		{
-			this.content = new JSONObject(stringBuffer.toString());
-			this.stringBuffer = null;
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();;
-		}
-	}
-
 	/**
 	 * @return The data represented as a JSONObject primitive type
 	 */
@@ -0,0 +1,191 @@
+package net.callumtaylor.asynchttp.response;
+
+import android.support.annotation.WorkerThread;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import net.callumtaylor.asynchttp.obj.GsonRegistry;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * Streaming Gson response handler for large json arrays. Each element of the array is parsed and passed to
+ * {@link #onElement} as soon as it has been read, so the whole array is never held in memory.
+ * <p>
+ * By default the top-level array is streamed. A path of object member names can be given to stream an array
+ * nested inside an object, for example <code>"data", "items"</code> for <code>{"data": {"items": [...]}}</code>.
+ * <p>
+ * Call {@link #stop()} from {@link #onElement} to stop reading. The rest of the response is not downloaded.
+ * <p>
+ * The content of this handler is the number of elements that were read.
+ * <pre>
+	new AsyncHttpClient("http://example.com/")
+		.get("export", new JsonArrayStreamResponseHandler&lt;Item&gt;(Item.class, "data", "items")
+		{
+			&#064;Override public void onElement(Item element, int index)
+			{
+				// store the element
+			}
+		});
+ * </pre>
+ *
+ * @param <T> The type of each element
+ */
+public abstract class JsonArrayStreamResponseHandler<T> extends StreamResponseHandler<Integer>
+{
+	private final Gson gson;
+	private final Type elementType;
+	private final String[] path;
+	private volatile boolean stopped = false;
+	private int count = 0;
+
+	/**
+	 * Streams the elements of the array as {@link JsonElement}s
+	 *
+	 * @param path The member names leading to the array, or none for the top-level array
+	 */
+	public JsonArrayStreamResponseHandler(String... path)
+	{
+		this(JsonElement.class, path);
+	}
+
+	/**
+	 * Uses the shared default Gson instance from {@link GsonRegistry}
+	 *
+	 * @param elementType The type of each element in the array
+	 * @param path The member names leading to the array, or none for the top-level array
+	 */
+	public JsonArrayStreamResponseHandler(Type elementType, String... path)
+	{
+		this(GsonRegistry.getDefault(), elementType, path);
+	}
+
+	/**
+	 * @param gson The gson instance used to parse each element
+	 * @param elementType The type of each element in the array
+	 * @param path The member names leading to the array, or none for the top-level array
+	 */
+	public JsonArrayStreamResponseHandler(Gson gson, Type elementType, String... path)
+	{
+		this.gson = gson;
+		this.elementType = elementType;
+		this.path = path;
+	}
+
+	/**
+	 * Called with each element of the array as soon as it has been parsed.
+	 *
+	 * @param element The parsed element
+	 * @param index The index of the element in the array
+	 */
+	@WorkerThread
+	public abstract void onElement(T element, int index);
+
+	/**
+	 * Stops reading the array after the current element. The connection is closed without
+	 * downloading the rest of the response.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	/**
+	 * @return True if {@link #stop()} was called before the end of the array was reached
+	 */
+	public boolean isStopped()
+	{
+		return stopped;
+	}
+
+	/**
+	 * Reads the array element by element
+	 */
+	@SuppressWarnings("unchecked") @Override public void generateContent()
+	{
+		JsonReader jsonReader = new JsonReader(reader);
+		jsonReader.setLenient(true);
+
+		try
+		{
+			// look the adapter up once rather than once per element
+			TypeAdapter<T> adapter = (TypeAdapter<T>)gson.getAdapter(TypeToken.get(elementType));
+
+			if (moveToPath(jsonReader) && jsonReader.peek() == JsonToken.BEGIN_ARRAY)
+			{
+				jsonReader.beginArray();
+
+				while (!stopped && jsonReader.hasNext())
+				{
+					T element = adapter.read(jsonReader);
+					onElement(element, count++);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+
+		try
+		{
+			jsonReader.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Moves the reader to the value at {@link #path}
+	 *
+	 * @return True if the path was found
+	 */
+	private boolean moveToPath(JsonReader jsonReader) throws IOException
+	{
+		for (String name : path)
+		{
+			if (jsonReader.peek() != JsonToken.BEGIN_OBJECT)
+			{
+				return false;
+			}
+
+			jsonReader.beginObject();
+
+			boolean found = false;
+			while (!found && jsonReader.hasNext())
+			{
+				if (name.equals(jsonReader.nextName()))
+				{
+					found = true;
+				}
+				else
+				{
+					jsonReader.skipValue();
+				}
+			}
+
+			if (!found)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return The number of elements which were read
+	 */
+	@Override public Integer getContent()
+	{
+		return count;
+	}
+}
@@ -0,0 +1,384 @@
+package net.callumtaylor.asynchttp.response;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import net.callumtaylor.asynchttp.obj.GsonRegistry;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming Gson response handler which only keeps the values at a set of paths. Everything else in the
+ * response is skipped without being parsed into a tree, and once every path has been found the handler stops
+ * reading and closes the response. OkHttp then discards whatever arrives in the next 100ms and drops the
+ * connection instead of reading the rest. The request is not cancelled, so {@link #onSuccess()} is still
+ * called as normal.
+ * <p>
+ * Paths are member names separated by dots, with array indexes in brackets, and an optional leading
+ * <code>$.</code>, for example <code>"data.user.name"</code> or <code>"$.items[0].id"</code>. Paths which only
+ * differ by the leading <code>$.</code> find the same value, which can be fetched with either of them.
+ * <pre>
+	new AsyncHttpClient("http://example.com/")
+		.get("report", new JsonPathResponseHandler("meta.total", "data.owner.name", "data.rows[0]")
+		{
+			&#064;Override public void onSuccess()
+			{
+				int total = get("meta.total", Integer.class);
+			}
+		});
+ * </pre>
+ * The content of this handler is a map of each path which was found to its value. If a member appears more
+ * than once in an object, the first value is kept.
+ */
+public class JsonPathResponseHandler extends StreamResponseHandler<Map<String, JsonElement>>
+{
+	private final Gson gson;
+	private final String[] paths;
+	private final Node root = new Node();
+	private final int pathCount;
+	private Map<String, JsonElement> content;
+	private boolean stopWhenFound = true;
+
+	/**
+	 * Uses the shared default Gson instance from {@link GsonRegistry} to convert values
+	 *
+	 * @param paths The paths of the values to keep
+	 */
+	public JsonPathResponseHandler(String... paths)
+	{
+		this(GsonRegistry.getDefault(), paths);
+	}
+
+	/**
+	 * @param gson The gson instance used by {@link #get(String, Type)} to convert values
+	 * @param paths The paths of the values to keep
+	 */
+	public JsonPathResponseHandler(Gson gson, String... paths)
+	{
+		this.gson = gson;
+		this.paths = paths;
+
+		for (String path : paths)
+		{
+			root.add(path, path.startsWith("$") ? path.substring(1) : path);
+		}
+
+		pathCount = root.count();
+	}
+
+	/**
+	 * Sets whether to stop reading the response once every path has been found. Defaults to true. If false,
+	 * the whole response is read and checked, and the first value of each path is still kept.
+	 */
+	public void setStopWhenFound(boolean stopWhenFound)
+	{
+		this.stopWhenFound = stopWhenFound;
+	}
+
+	/**
+	 * Reads the response, keeping only the values at the paths
+	 */
+	@Override public void generateContent()
+	{
+		content = new LinkedHashMap<>();
+
+		JsonReader jsonReader = new JsonReader(reader);
+		jsonReader.setLenient(true);
+
+		try
+		{
+			read(jsonReader, root);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+
+		try
+		{
+			// if the response was not read to the end, okhttp discards for up to 100ms then drops the connection
+			jsonReader.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the value at the node, descending only into the members and elements which lead to a path
+	 *
+	 * @return True if every path has been found and reading should stop
+	 */
+	private boolean read(JsonReader jsonReader, Node node) throws IOException
+	{
+		if (node.paths != null)
+		{
+			JsonElement value = new JsonParser().parse(jsonReader);
+			found(node, value);
+
+			return isDone();
+		}
+
+		JsonToken token = jsonReader.peek();
+		if (token == JsonToken.BEGIN_OBJECT && node.members != null)
+		{
+			jsonReader.beginObject();
+			while (jsonReader.hasNext())
+			{
+				Node child = node.members.get(jsonReader.nextName());
+				if (child == null)
+				{
+					jsonReader.skipValue();
+				}
+				else if (read(jsonReader, child))
+				{
+					return true;
+				}
+			}
+			jsonReader.endObject();
+		}
+		else if (token == JsonToken.BEGIN_ARRAY && node.elements != null)
+		{
+			jsonReader.beginArray();
+			for (int index = 0; jsonReader.hasNext(); index++)
+			{
+				Node child = node.elements.get(index);
+				if (child == null)
+				{
+					jsonReader.skipValue();
+				}
+				else if (read(jsonReader, child))
+				{
+					return true;
+				}
+			}
+			jsonReader.endArray();
+		}
+		else
+		{
+			jsonReader.skipValue();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Stores the value of a path, and the values of any other paths inside it
+	 */
+	private void found(Node node, JsonElement value)
+	{
+		if (value == null)
+		{
+			return;
+		}
+
+		if (node.paths != null)
+		{
+			for (String path : node.paths)
+			{
+				if (!content.containsKey(path))
+				{
+					content.put(path, value);
+				}
+			}
+		}
+
+		if (node.members != null && value.isJsonObject())
+		{
+			JsonObject object = value.getAsJsonObject();
+			for (Map.Entry<String, Node> member : node.members.entrySet())
+			{
+				found(member.getValue(), object.get(member.getKey()));
+			}
+		}
+
+		if (node.elements != null && value.isJsonArray())
+		{
+			JsonArray array = value.getAsJsonArray();
+			for (Map.Entry<Integer, Node> element : node.elements.entrySet())
+			{
+				if (element.getKey() < array.size())
+				{
+					found(element.getValue(), array.get(element.getKey()));
+				}
+			}
+		}
+	}
+
+	private boolean isDone()
+	{
+		return stopWhenFound && isComplete();
+	}
+
+	/**
+	 * @return True if every path was found
+	 */
+	public boolean isComplete()
+	{
+		return content != null && content.size() == pathCount;
+	}
+
+	/**
+	 * @return The value at the path, or null if it was not found
+	 */
+	public JsonElement get(String path)
+	{
+		return content == null ? null : content.get(path);
+	}
+
+	/**
+	 * @return The value at the path converted to the type, or null if it was not found
+	 */
+	public <T> T get(String path, Type type)
+	{
+		JsonElement value = get(path);
+		return value == null ? null : gson.<T>fromJson(value, type);
+	}
+
+	/**
+	 * @return The value at the path converted to the class, or null if it was not found
+	 */
+	public <T> T get(String path, Class<T> type)
+	{
+		JsonElement value = get(path);
+		return value == null ? null : gson.fromJson(value, type);
+	}
+
+	/**
+	 * @return The paths the handler was created with
+	 */
+	public String[] getPaths()
+	{
+		return paths;
+	}
+
+	/**
+	 * @return The values which were found, keyed by their path
+	 */
+	@Override public Map<String, JsonElement> getContent()
+	{
+		return content;
+	}
+
+	/**
+	 * A step in one or more paths. Nodes which end a path keep the whole value, so any other paths inside
+	 * them are taken from that value rather than read separately.
+	 */
+	private static class Node
+	{
+		private List<String> paths;
+		private Map<String, Node> members;
+		private Map<Integer, Node> elements;
+
+		private void add(String path, String remaining)
+		{
+			if (remaining.startsWith("."))
+			{
+				remaining = remaining.substring(1);
+			}
+
+			if (remaining.length() == 0)
+			{
+				if (paths == null)
+				{
+					paths = new ArrayList<>();
+				}
+
+				if (!paths.contains(path))
+				{
+					paths.add(path);
+				}
+
+				return;
+			}
+
+			if (remaining.startsWith("["))
+			{
+				int end = remaining.indexOf(']');
+				if (end == -1)
+				{
+					throw new IllegalArgumentException("Unclosed array index in " + path);
+				}
+
+				int index = Integer.parseInt(remaining.substring(1, end).trim());
+				if (elements == null)
+				{
+					elements = new HashMap<>();
+				}
+
+				child(elements, index).add(path, remaining.substring(end + 1));
+				return;
+			}
+
+			int end = remaining.length();
+			int dot = remaining.indexOf('.');
+			int bracket = remaining.indexOf('[');
+			if (dot != -1)
+			{
+				end = dot;
+			}
+
+			if (bracket != -1 && bracket < end)
+			{
+				end = bracket;
+			}
+
+			if (members == null)
+			{
+				members = new HashMap<>();
+			}
+
+			child(members, remaining.substring(0, end)).add(path, remaining.substring(end));
+		}
+
+		private static <K> Node child(Map<K, Node> children, K key)
+		{
+			Node child = children.get(key);
+			if (child == null)
+			{
+				child = new Node();
+				children.put(key, child);
+			}
+
+			return child;
+		}
+
+		/**
+		 * @return The number of distinct paths which end at or below this node
+		 */
+		private int count()
+		{
+			int count = paths != null ? paths.size() : 0;
+
+			if (members != null)
+			{
+				for (Node child : members.values())
+				{
+					count += child.count();
+				}
+			}
+
+			if (elements != null)
+			{
+				for (Node child : elements.values())
+				{
+					count += child.count();
+				}
+			}
+
+			return count;
+		}
+	}
+}
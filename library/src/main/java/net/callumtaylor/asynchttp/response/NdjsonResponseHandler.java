@@ -0,0 +1,356 @@
+package net.callumtaylor.asynchttp.response;
+
+import android.support.annotation.WorkerThread;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.GsonRegistry;
+import net.callumtaylor.asynchttp.obj.Packet;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Streaming Gson response handler for newline delimited JSON (NDJSON, or JSON Lines), where each line of the
+ * response is a separate JSON document. Each record is parsed and passed to {@link #onRecord} as soon as its
+ * line has been read, so responses of any length can be processed.
+ * <pre>
+	client.get("events/export", new NdjsonResponseHandler&lt;Event&gt;(Event.class)
+	{
+		&#064;Override public void onRecord(Event record, long index)
+		{
+			// store the record
+		}
+	});
+ * </pre>
+ * Lines are split off the response by moving the segments of the buffer rather than copying them. Records
+ * are passed to {@link #onRecord} on the thread reading the response, in order, so a slow handler slows the
+ * download down rather than records building up in memory. With {@link #setParallelism(int)}, lines are parsed
+ * on a worker pool while the response is read, and still delivered in order.
+ * <p>
+ * Call {@link #stop()} from {@link #onRecord} to stop reading. The rest of the response is not downloaded.
+ * <p>
+ * The content of this handler is the number of records that were delivered.
+ *
+ * @param <T> The type of each record
+ */
+public abstract class NdjsonResponseHandler<T> extends ResponseHandler<Long>
+{
+	/**
+	 * Default length a single line can grow to before the response is failed
+	 */
+	public static final long DEFAULT_MAX_LINE_LENGTH = 1024 * 1024 * 8;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final ExecutorService parseExecutor = Executors.newCachedThreadPool();
+
+	private final Gson gson;
+	private final Type recordType;
+	private int parallelism = 1;
+	private long maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+	private volatile boolean stopped = false;
+	private long count = 0;
+
+	/**
+	 * Parses each record as a {@link JsonElement}
+	 */
+	public NdjsonResponseHandler()
+	{
+		this(JsonElement.class);
+	}
+
+	/**
+	 * Uses the shared default Gson instance from {@link GsonRegistry}
+	 *
+	 * @param recordType The type of each record
+	 */
+	public NdjsonResponseHandler(Type recordType)
+	{
+		this(GsonRegistry.getDefault(), recordType);
+	}
+
+	/**
+	 * @param gson The gson instance used to parse each record
+	 * @param recordType The type of each record
+	 */
+	public NdjsonResponseHandler(Gson gson, Type recordType)
+	{
+		this.gson = gson;
+		this.recordType = recordType;
+	}
+
+	/**
+	 * Sets the number of lines parsed at once on a worker pool. Defaults to 1, which parses each line on the
+	 * thread reading the response. Records are delivered in order either way.
+	 */
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the length a single line can grow to before the response is failed, to stop a response without
+	 * new lines being read into memory. Defaults to {@link #DEFAULT_MAX_LINE_LENGTH}.
+	 */
+	public void setMaxLineLength(long maxLineLength)
+	{
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Called with each record as soon as it has been parsed, in the order of the response.
+	 *
+	 * @param record The parsed record
+	 * @param index The index of the record in the response, not counting blank lines
+	 */
+	@WorkerThread
+	public abstract void onRecord(T record, long index);
+
+	/**
+	 * Called when a line could not be parsed. Default is to stop reading and fail the request.
+	 *
+	 * @param e The parse error
+	 * @param index The index the record would have had
+	 * @return True to skip the line and carry on reading, false to fail the request
+	 */
+	@WorkerThread
+	public boolean onRecordError(Exception e, long index)
+	{
+		return false;
+	}
+
+	/**
+	 * Stops reading after the current record. The connection is closed without downloading the rest
+	 * of the response.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	/**
+	 * @return True if {@link #stop()} was called before the end of the response was reached
+	 */
+	public boolean isStopped()
+	{
+		return stopped;
+	}
+
+	/**
+	 * Splits the source into lines and delivers their records
+	 */
+	@SuppressWarnings("unchecked") @Override public void onReceiveSource(BufferedSource source, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		final TypeAdapter<T> adapter = (TypeAdapter<T>)gson.getAdapter(TypeToken.get(recordType));
+		final ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+
+		long readCount = 0;
+		long lineCount = 0;
+
+		try
+		{
+			Buffer line;
+			while (!stopped && !client.isCancelled() && (line = readLine(source)) != null)
+			{
+				readCount += line.size();
+				getConnectionInfo().responseLength = readCount;
+				client.transferProgress(new Packet(readCount, totalLength, true));
+
+				final Buffer record = trimLine(line);
+				if (record.size() == 0)
+				{
+					continue;
+				}
+
+				if (parallelism == 1)
+				{
+					T parsed;
+					try
+					{
+						parsed = parse(adapter, record);
+					}
+					catch (Exception e)
+					{
+						onParseError(e, lineCount++);
+						continue;
+					}
+
+					deliver(parsed, lineCount++);
+					continue;
+				}
+
+				pending.add(parseExecutor.submit(new Callable<T>()
+				{
+					@Override public T call() throws Exception
+					{
+						return parse(adapter, record);
+					}
+				}));
+
+				// wait for the oldest record once the pool is full, which holds back the download
+				if (pending.size() >= parallelism * 2)
+				{
+					deliver(pending.remove(), lineCount++);
+				}
+			}
+
+			while (!stopped && !client.isCancelled() && !pending.isEmpty())
+			{
+				deliver(pending.remove(), lineCount++);
+			}
+		}
+		finally
+		{
+			for (Future<T> future : pending)
+			{
+				future.cancel(true);
+			}
+
+			source.close();
+		}
+
+		if (!client.isCancelled())
+		{
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+	}
+
+	/**
+	 * Moves the next line, including its new line, out of the source without copying it
+	 *
+	 * @return The line, or null at the end of the source
+	 */
+	private Buffer readLine(BufferedSource source) throws IOException
+	{
+		Buffer buffer = source.buffer();
+		long scanned = 0;
+		long newLine;
+
+		while ((newLine = buffer.indexOf((byte)'\n', scanned)) == -1)
+		{
+			scanned = buffer.size();
+
+			if (scanned > maxLineLength)
+			{
+				throw new IOException("Line is longer than " + maxLineLength + " bytes");
+			}
+
+			if (!source.request(scanned + 1))
+			{
+				break;
+			}
+		}
+
+		if (newLine == -1 && buffer.size() == 0)
+		{
+			return null;
+		}
+
+		Buffer line = new Buffer();
+		line.write(buffer, newLine == -1 ? buffer.size() : newLine + 1);
+
+		return line;
+	}
+
+	/**
+	 * Removes the line ending and any trailing whitespace from the line
+	 */
+	private static Buffer trimLine(Buffer line) throws IOException
+	{
+		long end = line.size();
+		while (end > 0)
+		{
+			byte last = line.getByte(end - 1);
+			if (last != '\n' && last != '\r' && last != ' ' && last != '\t')
+			{
+				break;
+			}
+
+			end--;
+		}
+
+		if (end == line.size())
+		{
+			return line;
+		}
+
+		Buffer trimmed = new Buffer();
+		line.read(trimmed, end);
+
+		return trimmed;
+	}
+
+	private T parse(TypeAdapter<T> adapter, Buffer line) throws IOException
+	{
+		JsonReader jsonReader = new JsonReader(new InputStreamReader(line.inputStream(), UTF_8));
+		jsonReader.setLenient(true);
+
+		try
+		{
+			return adapter.read(jsonReader);
+		}
+		finally
+		{
+			jsonReader.close();
+		}
+	}
+
+	private void deliver(Future<T> future, long index) throws IOException, InterruptedException
+	{
+		try
+		{
+			deliver(future.get(), index);
+		}
+		catch (ExecutionException e)
+		{
+			onParseError(e.getCause() instanceof Exception ? (Exception)e.getCause() : e, index);
+		}
+	}
+
+	/**
+	 * Fails the request unless {@link #onRecordError} skips the line
+	 */
+	private void onParseError(Exception e, long index) throws IOException
+	{
+		if (!onRecordError(e, index))
+		{
+			throw e instanceof IOException ? (IOException)e : new IOException("Record " + index + " could not be parsed", e);
+		}
+	}
+
+	private void deliver(T record, long index)
+	{
+		onRecord(record, index);
+		count++;
+	}
+
+	@Override public void generateContent()
+	{
+		// records are delivered as they are read
+	}
+
+	/**
+	 * @return The number of records which were delivered
+	 */
+	@Override public Long getContent()
+	{
+		return count;
+	}
+}
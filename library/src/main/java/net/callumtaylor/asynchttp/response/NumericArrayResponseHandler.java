@@ -0,0 +1,316 @@
+package net.callumtaylor.asynchttp.response;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import net.callumtaylor.asynchttp.obj.NumericColumns;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streaming response handler for large tables of numbers, such as time series. The values are read straight
+ * into primitive <code>long[]</code> and <code>double[]</code> columns, so no value is ever boxed, and each
+ * value takes 8 bytes.
+ * <p>
+ * JSON responses must be an array of rows, where each row is an array of numbers, for example
+ * <code>[[1467331200000, 12.5], [1467331260000, 12.75]]</code>. If there is only one column, the rows can also
+ * be plain numbers, as in <code>[1, 2, 3]</code>. CSV responses have one row per line. Values past the last
+ * column are ignored, and JSON nulls or empty CSV values in a double column are read as NaN.
+ * <pre>
+	client.get("series", new NumericArrayResponseHandler(NumericColumns.Type.LONG, NumericColumns.Type.DOUBLE)
+	{
+		&#064;Override public void onSuccess()
+		{
+			long[] times = getContent().getLongs(0).array();
+			double[] values = getContent().getDoubles(1).array();
+			int count = getContent().getRowCount();
+		}
+	});
+ * </pre>
+ * If the response can not be parsed, the error is set in the connection info, which fails the request.
+ */
+public class NumericArrayResponseHandler extends StreamResponseHandler<NumericColumns>
+{
+	public enum Format
+	{
+		JSON,
+		CSV
+	}
+
+	private final Format format;
+	private final NumericColumns.Type[] types;
+	private char delimiter = ',';
+	private boolean skipHeader = false;
+	private NumericColumns content;
+
+	/**
+	 * Reads a JSON response
+	 *
+	 * @param types The type of each column
+	 */
+	public NumericArrayResponseHandler(NumericColumns.Type... types)
+	{
+		this(Format.JSON, types);
+	}
+
+	/**
+	 * @param format The format of the response
+	 * @param types The type of each column
+	 */
+	public NumericArrayResponseHandler(Format format, NumericColumns.Type... types)
+	{
+		this.format = format;
+		this.types = types;
+	}
+
+	/**
+	 * Sets the character between the values of a CSV response. Defaults to a comma.
+	 */
+	public void setDelimiter(char delimiter)
+	{
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Sets whether the first line of a CSV response is a header which should be skipped. Defaults to false.
+	 */
+	public void setSkipHeader(boolean skipHeader)
+	{
+		this.skipHeader = skipHeader;
+	}
+
+	/**
+	 * Reads the response into the columns
+	 */
+	@Override public void generateContent()
+	{
+		content = new NumericColumns(types);
+
+		try
+		{
+			if (format == Format.CSV)
+			{
+				readCsv();
+			}
+			else
+			{
+				readJson();
+			}
+
+			content.trimToSize();
+		}
+		catch (Exception e)
+		{
+			getConnectionInfo().responseError = e;
+			e.printStackTrace();
+		}
+
+		try
+		{
+			reader.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void readJson() throws IOException
+	{
+		JsonReader jsonReader = new JsonReader(reader);
+		jsonReader.setLenient(true);
+
+		jsonReader.beginArray();
+		while (jsonReader.hasNext())
+		{
+			if (types.length == 1 && jsonReader.peek() != JsonToken.BEGIN_ARRAY)
+			{
+				readJsonValue(jsonReader, 0);
+				continue;
+			}
+
+			jsonReader.beginArray();
+			for (int column = 0; column < types.length; column++)
+			{
+				if (!jsonReader.hasNext())
+				{
+					throw new IOException("Row " + content.getRowCount() + " has " + column + " values, expected " + types.length);
+				}
+
+				readJsonValue(jsonReader, column);
+			}
+
+			while (jsonReader.hasNext())
+			{
+				jsonReader.skipValue();
+			}
+			jsonReader.endArray();
+		}
+		jsonReader.endArray();
+	}
+
+	private void readJsonValue(JsonReader jsonReader, int column) throws IOException
+	{
+		if (types[column] == NumericColumns.Type.LONG)
+		{
+			content.addLong(column, jsonReader.nextLong());
+		}
+		else if (jsonReader.peek() == JsonToken.NULL)
+		{
+			jsonReader.nextNull();
+			content.addDouble(column, Double.NaN);
+		}
+		else
+		{
+			content.addDouble(column, jsonReader.nextDouble());
+		}
+	}
+
+	/**
+	 * Reads the CSV a block of characters at a time, collecting each value into a reused array
+	 */
+	private void readCsv() throws IOException
+	{
+		char[] buffer = new char[8192];
+		char[] value = new char[64];
+		int valueLength = 0;
+		int column = 0;
+		boolean header = skipHeader;
+
+		int len;
+		while ((len = reader.read(buffer, 0, buffer.length)) > -1)
+		{
+			for (int index = 0; index < len; index++)
+			{
+				char c = buffer[index];
+
+				if (header)
+				{
+					header = c != '\n';
+				}
+				else if (c == delimiter || c == '\n')
+				{
+					if (c == '\n' && column == 0 && valueLength == 0)
+					{
+						// blank line
+						continue;
+					}
+
+					addCsvValue(column, value, valueLength);
+					valueLength = 0;
+
+					if (c == '\n')
+					{
+						endCsvRow(column);
+						column = 0;
+					}
+					else
+					{
+						column++;
+					}
+				}
+				else if (c != '\r' && c != '"' && c != ' ' && c != '\t')
+				{
+					if (valueLength == value.length)
+					{
+						value = Arrays.copyOf(value, value.length * 2);
+					}
+
+					value[valueLength++] = c;
+				}
+			}
+		}
+
+		if (column > 0 || valueLength > 0)
+		{
+			// the last line did not end with a new line
+			addCsvValue(column, value, valueLength);
+			endCsvRow(column);
+		}
+	}
+
+	private void addCsvValue(int column, char[] value, int length) throws IOException
+	{
+		if (column >= types.length)
+		{
+			return;
+		}
+
+		if (types[column] == NumericColumns.Type.LONG)
+		{
+			content.addLong(column, parseLong(value, length));
+		}
+		else
+		{
+			content.addDouble(column, length == 0 ? Double.NaN : Double.parseDouble(new String(value, 0, length)));
+		}
+	}
+
+	private void endCsvRow(int column) throws IOException
+	{
+		if (column < types.length - 1)
+		{
+			throw new IOException("Row " + content.getRowCount() + " has " + (column + 1) + " values, expected " + types.length);
+		}
+	}
+
+	/**
+	 * Parses a whole number without creating a string, unless it is too long or has a decimal point or exponent
+	 */
+	private static long parseLong(char[] value, int length) throws IOException
+	{
+		int index = length > 0 && (value[0] == '-' || value[0] == '+') ? 1 : 0;
+		if (index == length)
+		{
+			throw new IOException("Expected a number but was \"" + new String(value, 0, length) + "\"");
+		}
+
+		if (length - index > 18)
+		{
+			return parseLongSlow(value, length);
+		}
+
+		long result = 0;
+		for (; index < length; index++)
+		{
+			char c = value[index];
+			if (c < '0' || c > '9')
+			{
+				return parseLongSlow(value, length);
+			}
+
+			result = result * 10 + (c - '0');
+		}
+
+		return value[0] == '-' ? -result : result;
+	}
+
+	private static long parseLongSlow(char[] value, int length) throws IOException
+	{
+		String literal = new String(value, 0, length);
+
+		try
+		{
+			return Long.parseLong(literal);
+		}
+		catch (NumberFormatException e)
+		{
+			double number = Double.parseDouble(literal);
+			if (number != (long)number)
+			{
+				throw new IOException("Expected a whole number but was " + literal);
+			}
+
+			return (long)number;
+		}
+	}
+
+	/**
+	 * @return The columns which were read
+	 */
+	@Override public NumericColumns getContent()
+	{
+		return content;
+	}
+}
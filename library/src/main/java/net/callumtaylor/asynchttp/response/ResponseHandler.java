@@ -11,6 +11,13 @@ import net.callumtaylor.asynchttp.obj.Packet;
 
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okio.BufferedSource;
+import okio.ByteString;
 
 /**
  * This is the base class for response handlers in AsyncHttpClient. The method
@@ -39,12 +46,112 @@ public abstract class ResponseHandler<E>
 		return connectionInfo;
 	}
 
+	/**
+	 * Gets the charset declared in the <code>Content-Type</code> header of the response
+	 *
+	 * @param defaultCharset
+	 *            The charset to use if the response did not declare one, or declared one which is not supported
+	 * @return The charset of the response
+	 */
+	protected Charset getResponseCharset(Charset defaultCharset)
+	{
+		Headers headers = getConnectionInfo().responseHeaders;
+		String contentType = headers == null ? null : headers.get("Content-Type");
+		MediaType mediaType = contentType == null ? null : MediaType.parse(contentType);
+
+		if (mediaType != null)
+		{
+			try
+			{
+				return mediaType.charset(defaultCharset);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		return defaultCharset;
+	}
+
 	/**
 	 * Called when the connection is first made
 	 */
 	@WorkerThread
 	public void onSend(){}
 
+	/**
+	 * Called just before the request is made, after the client has set the method, body and headers.
+	 * Handlers can override this to add headers which depend on their own state, such as a <code>Range</code>.
+	 *
+	 * @param request
+	 *            The request which is about to be made
+	 */
+	@WorkerThread
+	public void onBeforeRequest(Request.Builder request){}
+
+	/**
+	 * Called on the worker thread before the request is made. Handlers which can get their content without
+	 * a request, such as from a memory cache, should generate it here and return true, and the request is
+	 * skipped. The response is then treated as successful with a response code of 200 and no headers.
+	 *
+	 * @return True if the handler already has its content
+	 */
+	@WorkerThread
+	public boolean onLoadCachedContent()
+	{
+		return false;
+	}
+
+	/**
+	 * Called when processing the response body. The source is read directly from the connection
+	 * (and decompressed if needed) without any additional buffering, so handlers which can consume
+	 * okio segments should override this method rather than {@link ResponseHandler#onReceiveStream}.
+	 * Default is to pass the source as an InputStream to {@link ResponseHandler#onReceiveStream}.
+	 *
+	 * The built-in handlers which read the source directly only call {@link ResponseHandler#onByteChunkReceived}
+	 * for each chunk when a subclass overrides it, see {@link ResponseHandler#overridesByteChunkReceived}. Handlers
+	 * should always call {@link ClientTaskImpl#transferProgress} to report progress.
+	 *
+	 * @param source
+	 *            The response source
+	 * @param client
+	 *            The client task
+	 * @param totalLength
+	 *            The total length of the source
+	 * @throws SocketTimeoutException
+	 * @throws Exception
+	 */
+	@WorkerThread
+	public void onReceiveSource(BufferedSource source, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		onReceiveStream(source.inputStream(), client, totalLength);
+	}
+
+	/**
+	 * Whether the handler reads the response itself in {@link ResponseHandler#onReceiveSource} or
+	 * {@link ResponseHandler#onReceiveStream}, rather than being passed it chunk by chunk through
+	 * {@link ResponseHandler#onByteChunkReceived}. Handlers which pass one response on to others, such as
+	 * {@link TeeResponseHandler}, give these handlers a source of their own to read.
+	 *
+	 * By default this is true if either method is overridden. Handlers which wrap another should return
+	 * the value of the wrapped handler.
+	 *
+	 * @return True if the handler reads the source itself
+	 */
+	public boolean readsSource()
+	{
+		try
+		{
+			return getClass().getMethod("onReceiveSource", BufferedSource.class, ClientTaskImpl.class, long.class).getDeclaringClass() != ResponseHandler.class
+				|| getClass().getMethod("onReceiveStream", InputStream.class, ClientTaskImpl.class, long.class).getDeclaringClass() != ResponseHandler.class;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
 	/**
 	 * Called when processing the response from a stream. Use this to override
 	 * the processing of the InputStream to handle the response differently.
@@ -110,6 +217,27 @@ public abstract class ResponseHandler<E>
 	@WorkerThread
 	public void onByteChunkReceived(@Nullable byte[] chunk, long chunkLength, long totalProcessed, long totalLength){}
 
+	/**
+	 * Checks if {@link ResponseHandler#onByteChunkReceived} is overridden below the given class. Built-in handlers
+	 * which read the source directly use this to keep passing each chunk to subclasses which process them.
+	 *
+	 * @param handlerClass
+	 *            The built-in handler class
+	 * @return True if a subclass of the handler class overrides {@link ResponseHandler#onByteChunkReceived}
+	 */
+	protected boolean overridesByteChunkReceived(Class<?> handlerClass)
+	{
+		try
+		{
+			Class<?> declaringClass = getClass().getMethod("onByteChunkReceived", byte[].class, long.class, long.class, long.class).getDeclaringClass();
+			return declaringClass != handlerClass && handlerClass.isAssignableFrom(declaringClass);
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
 	/**
 	 * Runs on the UI thread. Useful for updating progress bars.
 	 *
@@ -125,8 +253,6 @@ public abstract class ResponseHandler<E>
 	 * Called when a chunk has been uploaded to the request. This will be
 	 * called once every chunk request
 	 *
-	 * @param chunk
-	 *            The chunk of data
 	 * @param chunkLength
 	 *            The length of the chunk
 	 * @param totalProcessed
@@ -135,7 +261,46 @@ public abstract class ResponseHandler<E>
 	 *            The total size of the request.
 	 */
 	@WorkerThread
-	public void onByteChunkSent(@NonNull byte[] chunk, long chunkLength, long totalProcessed, long totalLength){}
+	public void onByteChunkSent(long chunkLength, long totalProcessed, long totalLength){}
+
+	/**
+	 * Return true to receive the data of each uploaded chunk in {@link ResponseHandler#onByteChunkSent(ByteString, long, long)}.
+	 * This is off by default as most handlers only need the byte counts.
+	 *
+	 * @return True to observe the uploaded chunks
+	 */
+	public boolean observeSentChunks()
+	{
+		return false;
+	}
+
+	/**
+	 * Called with the data of a chunk that has been uploaded to the request, before
+	 * {@link ResponseHandler#onByteChunkSent(long, long, long)}. Only called if {@link ResponseHandler#observeSentChunks()}
+	 * returns true.
+	 *
+	 * @param chunk
+	 *            Read-only view of the chunk of data. This shares the memory of the request body and is not a copy
+	 * @param totalProcessed
+	 *            The total amount of data processed from the request.
+	 * @param totalLength
+	 *            The total size of the request.
+	 */
+	@WorkerThread
+	public void onByteChunkSent(@NonNull ByteString chunk, long totalProcessed, long totalLength){}
+
+	/**
+	 * Called after {@link ResponseHandler#onByteChunkSent(long, long, long)} when the request body is a
+	 * {@link net.callumtaylor.asynchttp.obj.CompressedRequestBody}. The chunk callbacks report the compressed
+	 * bytes sent over the connection, this reports the progress through the body before it was compressed.
+	 *
+	 * @param totalProcessed
+	 *            The total amount of the request body which has been compressed
+	 * @param totalLength
+	 *            The size of the request body before compression, or -1 if unknown
+	 */
+	@WorkerThread
+	public void onUncompressedBytesSent(long totalProcessed, long totalLength){}
 
 	/**
 	 * Runs on the UI thread. Useful for updating progress bars.
@@ -158,11 +323,28 @@ public abstract class ResponseHandler<E>
 	 * Override this method to efficiently generate your content from any buffers you have have
 	 * used.
 	 *
-	 * This is called directly after {@link ResponseHandler#onReceiveStream} has finished
+	 * This is called directly after {@link ResponseHandler#onReceiveSource} has finished
 	 */
 	@WorkerThread
 	public abstract void generateContent();
 
+	/**
+	 * Called once the response has been read and before its source is closed, whether it succeeded, failed or was
+	 * cancelled. Handlers which read the source on other threads must stop them here. Handlers which
+	 * reserve memory from the {@link net.callumtaylor.asynchttp.obj.MemoryBudget} should return anything still
+	 * reserved here, as {@link ResponseHandler#generateContent} is not called if reading the response fails.
+	 */
+	@WorkerThread
+	public void onReleaseBuffers(){}
+
+	/**
+	 * Called after {@link ResponseHandler#onReleaseBuffers} when the response was received but rejected, for example
+	 * by {@link DigestResponseHandler} when the digest does not match. Handlers which save the response should delete
+	 * what they saved, including any partial download which would otherwise be resumed by the next request.
+	 */
+	@WorkerThread
+	public void onDiscardContent(){}
+
 	/**
 	 * Gets the content generated from the
 	 * response.
@@ -0,0 +1,482 @@
+package net.callumtaylor.asynchttp.response;
+
+import net.callumtaylor.asynchttp.ClientExecutorTask;
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.Packet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.Util;
+import okio.BufferedSource;
+
+/**
+ * Downloads the response to disk in several segments at once, which is faster than a single stream on high
+ * latency connections. <b>note</b> This will replace any existing file with the same file name once the download
+ * has finished.
+ * <p>
+ * The request asks for the whole file as a range. If the server responds with a partial response, the file
+ * is split into segments: the first is read from the response and the rest are requested in parallel
+ * over the same connection pool. Each segment is written at its own position in the file, and a segment
+ * which fails is retried from where it stopped without affecting the others. If the server does not support
+ * ranges, the file is downloaded as a single stream.
+ * <p>
+ * The segments are written to <code>filePath + ".part"</code>, which is renamed to the file path once every
+ * segment has finished, and deleted if the download fails or is cancelled.
+ * <pre>
+	client.get("large.zip", new SegmentedCacheResponseHandler(path, 4));
+ * </pre>
+ * Progress of all of the segments together is reported through {@link #onByteChunkReceivedProcessed}.
+ */
+public class SegmentedCacheResponseHandler extends ResponseHandler<File>
+{
+	private static final int DEFAULT_SEGMENTS = 4;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long MIN_SEGMENT_SIZE = 1024 * 512;
+	private static final int BUFFER_SIZE = 1024 * 64;
+	private static final ExecutorService segmentExecutor = Executors.newCachedThreadPool();
+
+	private final File mFile;
+	private final File partFile;
+	private final int segmentCount;
+
+	public SegmentedCacheResponseHandler(String filePath)
+	{
+		this(filePath, DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * @param filePath The path to save the response to
+	 * @param segmentCount The maximum number of segments to download at once. Small files use fewer segments.
+	 */
+	public SegmentedCacheResponseHandler(String filePath, int segmentCount)
+	{
+		this.mFile = new File(filePath);
+		this.partFile = new File(filePath + CacheResponseHandler.PART_SUFFIX);
+		this.segmentCount = Math.max(1, segmentCount);
+	}
+
+	/**
+	 * Asks for the whole file as a range, so the response tells us the length and whether ranges are supported
+	 */
+	@Override public void onBeforeRequest(Request.Builder request)
+	{
+		request.header("Range", "bytes=0-");
+		request.header("Accept-Encoding", "identity");
+	}
+
+	@Override public void onReceiveSource(BufferedSource source, final ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		Headers headers = getConnectionInfo().responseHeaders;
+		String contentRange = headers == null ? null : headers.get("Content-Range");
+		long fileLength = getConnectionInfo().responseCode == 206 && contentRange != null && contentRange.startsWith("bytes 0-") ? CacheResponseHandler.parseRangeLength(contentRange) : -1;
+
+		RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+		Download download = new Download(file.getChannel(), fileLength, client);
+		boolean saved = false;
+
+		try
+		{
+			try
+			{
+				if (fileLength < 0)
+				{
+					// the server ignored the range, so the response is the whole file
+					file.setLength(0);
+					copy(source, download, new Segment(0, Long.MAX_VALUE));
+				}
+				else
+				{
+					file.setLength(fileLength);
+					downloadSegments(source, download, validator(headers));
+				}
+
+				download.channel.force(false);
+			}
+			finally
+			{
+				file.close();
+			}
+
+			// the part is only moved into place once every segment has been written
+			if (!client.isCancelled())
+			{
+				mFile.delete();
+				if (!partFile.renameTo(mFile))
+				{
+					throw new IOException("Could not rename " + partFile + " to " + mFile);
+				}
+
+				saved = true;
+			}
+		}
+		finally
+		{
+			if (!saved)
+			{
+				partFile.delete();
+			}
+		}
+
+		if (!client.isCancelled())
+		{
+			long length = download.progress.get();
+			getConnectionInfo().responseLength = length;
+
+			// we fake the content length, because it can be -1
+			onByteChunkReceived(null, length, length, length);
+
+			client.transferProgress(new Packet(length, fileLength, true));
+		}
+	}
+
+	/**
+	 * Splits the file into segments and downloads them in parallel. If any segment fails, the others are
+	 * stopped, and this only returns once every segment has stopped writing to the file.
+	 *
+	 * @throws IOException The first error which stopped the download
+	 */
+	private void downloadSegments(BufferedSource source, final Download download, final String validator) throws IOException
+	{
+		int count = (int)Math.max(1, Math.min(segmentCount, download.fileLength / MIN_SEGMENT_SIZE));
+		long segmentSize = download.fileLength / count;
+
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int index = 1; index < count; index++)
+		{
+			final Segment segment = new Segment(index * segmentSize, index == count - 1 ? download.fileLength : (index + 1) * segmentSize);
+
+			futures.add(segmentExecutor.submit(new Callable<Void>()
+			{
+				@Override public Void call() throws Exception
+				{
+					try
+					{
+						fetch(download, segment, validator, null);
+					}
+					catch (IOException e)
+					{
+						download.stop(e);
+					}
+
+					return null;
+				}
+			}));
+		}
+
+		boolean finished = false;
+
+		try
+		{
+			// the first segment is read from the response which is already open
+			Segment first = new Segment(0, count == 1 ? download.fileLength : segmentSize);
+			fetch(download, first, validator, source);
+
+			for (Future<Void> future : futures)
+			{
+				future.get();
+			}
+
+			finished = true;
+		}
+		catch (IOException e)
+		{
+			download.stop(e);
+		}
+		catch (InterruptedException e)
+		{
+			download.stop(new InterruptedIOException());
+		}
+		catch (ExecutionException e)
+		{
+			download.stop(new IOException(e.getCause()));
+		}
+		finally
+		{
+			if (!finished || download.client.isCancelled())
+			{
+				download.stop(null);
+			}
+
+			// the segments are not interrupted, as that would close the channel under the ones still writing
+			awaitAll(futures);
+		}
+
+		if (download.error != null)
+		{
+			throw download.error;
+		}
+	}
+
+	/**
+	 * Downloads a segment, retrying from where it stopped if the connection fails. A segment is not retried
+	 * once the download has been stopped or cancelled, or if the file has been closed.
+	 *
+	 * @param source The response to read the start of the segment from, or null to request it
+	 */
+	private void fetch(Download download, Segment segment, String validator, BufferedSource source) throws IOException
+	{
+		IOException error = null;
+
+		for (int attempt = 0; attempt <= MAX_ATTEMPTS && segment.position < segment.end && !download.isStopped(); attempt++)
+		{
+			Response response = null;
+
+			try
+			{
+				if (source == null)
+				{
+					response = request(download, segment, validator);
+					source = response.body().source();
+				}
+
+				copy(source, download, segment);
+			}
+			catch (ClosedChannelException e)
+			{
+				// the file can't be written to any more, so retrying would only make more requests
+				throw e;
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+			finally
+			{
+				if (response != null)
+				{
+					Util.closeQuietly(response.body());
+				}
+
+				source = null;
+			}
+		}
+
+		if (segment.position < segment.end && !download.client.isCancelled())
+		{
+			throw error == null ? new IOException("Segment ended at " + segment.position + " of " + segment.end) : error;
+		}
+	}
+
+	private Response request(Download download, Segment segment, String validator) throws IOException
+	{
+		ClientTaskImpl client = download.client;
+		OkHttpClient httpClient = client instanceof ClientExecutorTask ? ((ClientExecutorTask)client).getHttpClient() : null;
+		if (httpClient == null)
+		{
+			httpClient = new OkHttpClient();
+		}
+
+		Headers.Builder headers = getConnectionInfo().requestHeaders == null ? new Headers.Builder() : getConnectionInfo().requestHeaders.newBuilder();
+		headers.removeAll("Connection");
+		headers.set("Range", "bytes=" + segment.position + "-" + (segment.end - 1));
+
+		if (validator != null)
+		{
+			headers.set("If-Range", validator);
+		}
+
+		Request request = new Request.Builder()
+			.url(getConnectionInfo().connectionUrl)
+			.headers(headers.build())
+			.build();
+
+		Response response = download.execute(httpClient.newCall(request));
+		String contentRange = response.header("Content-Range", "");
+
+		if (response.code() != 206 || !contentRange.startsWith("bytes " + segment.position + "-"))
+		{
+			Util.closeQuietly(response.body());
+			throw new IOException("Segment " + segment.position + "-" + (segment.end - 1) + " failed with " + response.code() + " " + contentRange);
+		}
+
+		return response;
+	}
+
+	/**
+	 * Writes the source to the file at the position of the segment, until the end of the segment
+	 */
+	private void copy(BufferedSource source, Download download, Segment segment) throws IOException
+	{
+		byte[] bytes = new byte[BUFFER_SIZE];
+
+		while (segment.position < segment.end && !download.isStopped())
+		{
+			int len = source.read(bytes, 0, (int)Math.min(bytes.length, segment.end - segment.position));
+			if (len < 0)
+			{
+				if (segment.end == Long.MAX_VALUE)
+				{
+					segment.end = segment.position;
+				}
+
+				return;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, len);
+			while (buffer.hasRemaining())
+			{
+				download.channel.write(buffer, segment.position + buffer.position());
+			}
+
+			segment.position += len;
+			download.client.transferProgress(new Packet(download.progress.addAndGet(len), download.fileLength, true));
+		}
+	}
+
+	/**
+	 * Waits for every future to finish, without giving up if the thread is interrupted
+	 */
+	private static void awaitAll(List<Future<Void>> futures)
+	{
+		boolean interrupted = false;
+
+		for (Future<Void> future : futures)
+		{
+			while (true)
+			{
+				try
+				{
+					future.get();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+				catch (Exception e)
+				{
+					break;
+				}
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The strong validator of the response, which makes sure every segment is from the same file
+	 */
+	private static String validator(Headers headers)
+	{
+		String etag = headers.get("ETag");
+		return etag != null && !etag.startsWith("W/") ? etag : headers.get("Last-Modified");
+	}
+
+	@Override public void generateContent()
+	{
+		// nothing to do here
+	}
+
+	/**
+	 * @return The downloaded file
+	 */
+	@Override public File getContent()
+	{
+		return mFile;
+	}
+
+	/**
+	 * State shared by all of the segments of a download
+	 */
+	private static class Download
+	{
+		private final FileChannel channel;
+		private final long fileLength;
+		private final ClientTaskImpl client;
+		private final AtomicLong progress = new AtomicLong(0);
+		private final List<Call> calls = new ArrayList<>();
+		private boolean stopped = false;
+		private IOException error;
+
+		private Download(FileChannel channel, long fileLength, ClientTaskImpl client)
+		{
+			this.channel = channel;
+			this.fileLength = fileLength;
+			this.client = client;
+		}
+
+		private boolean isStopped()
+		{
+			synchronized (calls)
+			{
+				return stopped || client.isCancelled() || Thread.currentThread().isInterrupted();
+			}
+		}
+
+		/**
+		 * Stops every segment, cancelling any requests in progress so segments blocked on a read return
+		 *
+		 * @param cause The error which stopped the download, or null if it was cancelled. Only the first error is kept.
+		 */
+		private void stop(IOException cause)
+		{
+			synchronized (calls)
+			{
+				if (error == null && !stopped)
+				{
+					error = cause;
+				}
+
+				stopped = true;
+
+				for (Call call : calls)
+				{
+					call.cancel();
+				}
+			}
+		}
+
+		private Response execute(Call call) throws IOException
+		{
+			synchronized (calls)
+			{
+				calls.add(call);
+
+				if (stopped)
+				{
+					call.cancel();
+				}
+			}
+
+			return call.execute();
+		}
+	}
+
+	/**
+	 * Range of the file to download. The end is exclusive.
+	 */
+	private static class Segment
+	{
+		private long position;
+		private long end;
+
+		private Segment(long position, long end)
+		{
+			this.position = position;
+			this.end = end;
+		}
+	}
+}
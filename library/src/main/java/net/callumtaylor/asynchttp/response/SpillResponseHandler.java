@@ -0,0 +1,149 @@
+package net.callumtaylor.asynchttp.response;
+
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.Packet;
+import net.callumtaylor.asynchttp.obj.SpillBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Holds the response in memory if it is small, or in a temporary file if it grows past a threshold. Useful
+ * when the size of the response is not known and could be too large for the heap.
+ * <pre>
+	client.get("export", new SpillResponseHandler(context.getCacheDir())
+	{
+		&#064;Override public void onSuccess()
+		{
+			InputStream stream = getContent().inputStream();
+			...
+			getContent().release();
+		}
+	});
+ * </pre>
+ * The content can be read as many times as needed, and must be released once it is no longer needed.
+ */
+public class SpillResponseHandler extends ResponseHandler<SpillBuffer>
+{
+	/**
+	 * Default number of bytes held in memory before the response is moved to a file
+	 */
+	public static final long DEFAULT_THRESHOLD = 1024 * 1024;
+
+	private final File directory;
+	private final long threshold;
+	private SpillBuffer buffer;
+	private boolean received = false;
+
+	/**
+	 * @param directory The directory to create the temporary file in, such as the cache directory
+	 */
+	public SpillResponseHandler(File directory)
+	{
+		this(directory, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param directory The directory to create the temporary file in, such as the cache directory
+	 * @param threshold The number of bytes held in memory before the response is moved to a file
+	 */
+	public SpillResponseHandler(File directory, long threshold)
+	{
+		this.directory = directory;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Moves the segments of the response into the buffer rather than copying them into chunks first
+	 */
+	@Override public void onReceiveSource(BufferedSource source, ClientTaskImpl client, long totalLength) throws SocketTimeoutException, Exception
+	{
+		open(totalLength);
+
+		Buffer chunk = new Buffer();
+
+		long len = 0;
+		long readCount = 0;
+		while ((len = source.read(chunk, 8192)) > -1 && !client.isCancelled())
+		{
+			buffer.write(chunk);
+
+			readCount += len;
+
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+
+		if (!client.isCancelled())
+		{
+			getConnectionInfo().responseLength = readCount;
+
+			// we fake the content length, because it can be -1
+			onByteChunkReceived(null, readCount, readCount, readCount);
+
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+
+		source.close();
+	}
+
+	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
+	{
+		try
+		{
+			open(totalLength);
+
+			if (chunk != null)
+			{
+				buffer.write(chunk, 0, (int)chunkLength);
+			}
+			else
+			{
+				buffer.close();
+				received = true;
+			}
+		}
+		catch (IOException e)
+		{
+			getConnectionInfo().responseError = e;
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Releases the buffer and deletes its file if the response was not received in full, as the app is never given
+	 * the chance to release it
+	 */
+	@Override public void onReleaseBuffers()
+	{
+		if (buffer != null && (!received || getConnectionInfo().responseError != null))
+		{
+			buffer.release();
+			buffer = null;
+		}
+	}
+
+	private void open(long totalLength) throws IOException
+	{
+		if (buffer == null)
+		{
+			buffer = new SpillBuffer(directory, threshold, totalLength);
+		}
+	}
+
+	@Override public void generateContent()
+	{
+		// nothing to do here
+	}
+
+	/**
+	 * @return The response, or null if nothing was received
+	 */
+	@Override public SpillBuffer getContent()
+	{
+		return buffer;
+	}
+}
@@ -1,50 +1,154 @@
 package net.callumtaylor.asynchttp.response;
 
+import net.callumtaylor.asynchttp.obj.BufferPipe;
 import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
 import net.callumtaylor.asynchttp.obj.Packet;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
 /**
- * Simple response handler that uses an input stream reader rather than appending an string buffer
+ * Simple response handler that uses an input stream reader rather than appending an string buffer.
+ * <p>
+ * The reader reads straight from the response source, so the only buffer between the connection and
+ * the parser is the one used by the reader to decode characters. Chunks are only copied and passed to
+ * {@link #onByteChunkReceived} if a subclass overrides it.
+ * <p>
+ * When {@link #setPipelined(boolean)} is enabled, the response is downloaded on a separate thread into
+ * a bounded buffer while {@link #generateContent()} parses it, so the download and the parsing overlap.
+ * Subclasses should close the {@link #reader} when they have finished with it, which stops the download thread.
+ * If they do not, or parsing fails, the reader is closed in {@link #onReleaseBuffers()} before the response is.
  */
 public abstract class StreamResponseHandler<E> extends ResponseHandler<E>
 {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final long PIPE_SIZE = 1024 * 256;
+	private static final ExecutorService pipelineExecutor = Executors.newCachedThreadPool();
+
 	protected InputStreamReader reader;
+	protected boolean pipelined = false;
+
+	/**
+	 * Sets whether the response should be downloaded on a separate thread while it is being parsed
+	 * @param pipelined Download and parse in parallel true/false
+	 */
+	public void setPipelined(boolean pipelined)
+	{
+		this.pipelined = pipelined;
+	}
 
-	@Override public void onReceiveStream(InputStream stream, final ClientTaskImpl client, final long totalLength) throws Exception
+	@Override public void onReceiveSource(BufferedSource source, final ClientTaskImpl client, final long totalLength) throws Exception
 	{
 		if (reader == null)
 		{
-			reader = new InputStreamReader(new BufferedInputStream(stream, 8192)
+			final boolean passChunks = overridesByteChunkReceived(StreamResponseHandler.class);
+
+			Source readSource = new ForwardingSource(source)
 			{
 				private long total = 0;
 
-				@Override public synchronized int read(byte[] buffer, int byteOffset, int byteCount) throws IOException
+				@Override public long read(Buffer sink, long byteCount) throws IOException
 				{
-					int len = super.read(buffer, byteOffset, byteCount);
+					long len = super.read(sink, byteCount);
 
-					onByteChunkReceived(buffer, len, total, totalLength);
-					client.transferProgress(new Packet(total, totalLength, true));
+					if (len > 0)
+					{
+						if (passChunks)
+						{
+							Buffer chunk = new Buffer();
+							sink.copyTo(chunk, sink.size() - len, len);
+							onByteChunkReceived(chunk.readByteArray(), len, total, totalLength);
+						}
 
-					total += byteCount;
+						total += len;
+						getConnectionInfo().responseLength = total;
+						client.transferProgress(new Packet(total, totalLength, true));
+					}
 
 					return len;
 				}
-			});
+			};
+
+			if (pipelined)
+			{
+				readSource = pipe(readSource, client);
+			}
+
+			reader = new InputStreamReader(Okio.buffer(readSource).inputStream(), getResponseCharset(UTF_8));
 		}
 
 		if (!client.isCancelled())
 		{
-			getConnectionInfo().responseLength = totalLength;
-
 			// we fake the content length, because it can be -1
 			onByteChunkReceived(null, totalLength, totalLength, totalLength);
 
 			client.transferProgress(new Packet(totalLength, totalLength, true));
 		}
 	}
+
+	/**
+	 * Closes the reader if the subclass did not. When pipelined, this stops the download thread and waits for it to
+	 * finish its current read, so the response source is never used by two threads at once.
+	 */
+	@Override public void onReleaseBuffers()
+	{
+		if (reader != null)
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+
+			reader = null;
+		}
+	}
+
+	/**
+	 * Starts reading the source into a pipe on the pipeline thread
+	 *
+	 * @return The source to read the pipe from
+	 */
+	private Source pipe(final Source upstream, final ClientTaskImpl client)
+	{
+		final BufferPipe pipe = new BufferPipe(PIPE_SIZE);
+
+		pipelineExecutor.execute(new Runnable()
+		{
+			@Override public void run()
+			{
+				Buffer buffer = new Buffer();
+
+				try
+				{
+					while (!pipe.isReaderClosed() && !client.isCancelled() && upstream.read(buffer, 8192) > -1)
+					{
+						pipe.write(buffer, buffer.size());
+					}
+				}
+				catch (IOException e)
+				{
+					pipe.fail(e);
+				}
+				finally
+				{
+					pipe.close();
+				}
+			}
+		});
+
+		return pipe.source();
+	}
 }
@@ -1,32 +1,150 @@
 package net.callumtaylor.asynchttp.response;
 
+import net.callumtaylor.asynchttp.obj.MemoryBudget;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
 /**
- * Basic string response handler. Useful for parsing non-binary responses into any format
+ * Basic string response handler. Useful for parsing non-binary responses into any format.
+ * <p>
+ * The response is decoded as it streams in using the charset from the <code>Content-Type</code> header,
+ * defaulting to UTF-8. Characters which are split across two chunks are carried over to the next chunk
+ * rather than being decoded separately. The memory used by the string is reserved from the {@link MemoryBudget}
+ * while it is being built.
  */
 public class StringResponseHandler extends ResponseHandler<String>
 {
-	private StringBuffer stringBuffer;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private StringBuilder stringBuilder;
+	private CharsetDecoder decoder;
+	private CharBuffer charBuffer;
+	private ByteBuffer pending;
+	private MemoryBudget.Reservation reservation;
 	private String content;
 
 	@Override public void onByteChunkReceived(byte[] chunk, long chunkLength, long totalProcessed, long totalLength)
 	{
-		if (stringBuffer == null)
+		if (getConnectionInfo().responseError != null)
 		{
-			int total = (int)(totalLength > Integer.MAX_VALUE ? Integer.MAX_VALUE : totalLength);
-			stringBuffer = new StringBuffer(Math.max(8192, total));
+			return;
 		}
 
-		if (chunk != null)
+		try
 		{
-			try
+			if (stringBuilder == null)
 			{
-				stringBuffer.append(new String(chunk, 0, (int)chunkLength, "UTF-8"));
+				decoder = getResponseCharset(UTF_8).newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+				// the decoder can never produce more than maxCharsPerByte chars per byte, so the builder will not need to grow
+				long total = totalLength > 0 ? (long)Math.ceil(totalLength * decoder.maxCharsPerByte()) : 8192;
+				total = Math.min(total, Integer.MAX_VALUE - 8);
+
+				reservation = MemoryBudget.getDefault().open();
+				reservation.reserve(total * 2);
+
+				stringBuilder = new StringBuilder((int)total);
+				charBuffer = CharBuffer.allocate(8192);
+				pending = ByteBuffer.allocate(16);
 			}
-			catch (Exception e)
+
+			if (chunk != null)
 			{
-				e.printStackTrace();
+				ensureCapacity(stringBuilder.length() + (long)Math.ceil((chunkLength + pending.position()) * decoder.maxCharsPerByte()));
+				decode(ByteBuffer.wrap(chunk, 0, (int)chunkLength), false);
 			}
+			else
+			{
+				ensureCapacity(stringBuilder.length() + (long)Math.ceil(pending.position() * decoder.maxCharsPerByte()) + charBuffer.capacity());
+				decode(ByteBuffer.allocate(0), true);
+
+				decoder.flush(charBuffer);
+				drainChars();
+			}
+		}
+		catch (IOException e)
+		{
+			// the memory budget rejected the response
+			getConnectionInfo().responseError = e;
+			onReleaseBuffers();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Grows the string builder, reserving the memory for it first. Chars are counted as 2 bytes each.
+	 */
+	private void ensureCapacity(long chars) throws IOException
+	{
+		int capacity = stringBuilder.capacity();
+		if (chars <= capacity)
+		{
+			return;
 		}
+
+		long newCapacity = Math.min(Math.max(chars, capacity * 2L + 2), Integer.MAX_VALUE - 8);
+		reservation.reserve((newCapacity - capacity) * 2);
+		stringBuilder.ensureCapacity((int)newCapacity);
+	}
+
+	/**
+	 * Decodes the input into the string builder. Any trailing bytes of an incomplete character are kept in
+	 * {@link #pending} until the next chunk arrives.
+	 */
+	private void decode(ByteBuffer in, boolean endOfInput)
+	{
+		// complete a character which was split over the previous chunk boundary, one byte at a time
+		while (pending.position() > 0 && in.hasRemaining())
+		{
+			pending.put(in.get());
+			pending.flip();
+			decode(pending, false, false);
+			pending.compact();
+		}
+
+		if (pending.position() > 0 && endOfInput)
+		{
+			pending.flip();
+			decode(pending, true, false);
+			pending.clear();
+		}
+
+		decode(in, endOfInput, true);
+
+		if (in.hasRemaining())
+		{
+			pending.put(in);
+		}
+	}
+
+	private void decode(ByteBuffer in, boolean endOfInput, boolean drain)
+	{
+		CoderResult result;
+		do
+		{
+			result = decoder.decode(in, charBuffer, endOfInput);
+
+			if (result.isOverflow() || drain)
+			{
+				drainChars();
+			}
+		}
+		while (result.isOverflow());
+	}
+
+	private void drainChars()
+	{
+		charBuffer.flip();
+		stringBuilder.append(charBuffer.array(), charBuffer.arrayOffset() + charBuffer.position(), charBuffer.remaining());
+		charBuffer.clear();
 	}
 
 	/**
@@ -34,8 +152,22 @@ public class StringResponseHandler extends ResponseHandler<String>
 	 */
 	@Override public void generateContent()
 	{
-		this.content = stringBuffer.toString();
-		this.stringBuffer = null;
+		this.content = stringBuilder == null ? "" : stringBuilder.toString();
+		onReleaseBuffers();
+	}
+
+	@Override public void onReleaseBuffers()
+	{
+		this.stringBuilder = null;
+		this.charBuffer = null;
+		this.pending = null;
+		this.decoder = null;
+
+		if (reservation != null)
+		{
+			reservation.close();
+			reservation = null;
+		}
 	}
 
 	/**
@@ -0,0 +1,473 @@
+package net.callumtaylor.asynchttp.response;
+
+import net.callumtaylor.asynchttp.obj.BufferPipe;
+import net.callumtaylor.asynchttp.obj.ClientTaskImpl;
+import net.callumtaylor.asynchttp.obj.ConnectionInfo;
+import net.callumtaylor.asynchttp.obj.Packet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Passes one response to several handlers in a single read, for example to cache the response to disk and
+ * parse it at the same time.
+ * <pre>
+	GsonResponseHandler&lt;User&gt; parser = new GsonResponseHandler&lt;&gt;(User.class);
+	CacheResponseHandler cache = new CacheResponseHandler(path);
+
+	client.get("user", new TeeResponseHandler(cache, parser)
+	{
+		&#064;Override public void onSuccess()
+		{
+			User user = parser.getContent();
+		}
+	});
+ * </pre>
+ * Each chunk of the response is given to every handler in turn. Handlers which read the response themselves,
+ * see {@link ResponseHandler#readsSource()}, read it on their own thread through a bounded pipe. Reading from the
+ * connection waits for the slowest handler, so no handler falls more than {@link #PIPE_SIZE} bytes behind.
+ * <p>
+ * Every handler keeps its own content, and gets its own lifecycle callbacks. An error in any handler fails
+ * the request. Handlers which change the request, such as resumable or segmented downloads, are not supported.
+ */
+public class TeeResponseHandler extends ResponseHandler<List<Object>>
+{
+	/**
+	 * The number of bytes a handler reading on its own thread can fall behind
+	 */
+	public static final long PIPE_SIZE = 1024 * 256;
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final ExecutorService pipeExecutor = Executors.newCachedThreadPool();
+
+	private final List<ResponseHandler<?>> handlers;
+	private final List<Future<?>> pipedHandlers = new ArrayList<>();
+	private final List<BufferPipe> pipes = new ArrayList<>();
+	private boolean pipesEnded = true;
+	private List<Object> content;
+
+	public TeeResponseHandler(ResponseHandler<?>... handlers)
+	{
+		this.handlers = Arrays.asList(handlers);
+	}
+
+	/**
+	 * @return The handlers the response is passed to
+	 */
+	public List<ResponseHandler<?>> getHandlers()
+	{
+		return handlers;
+	}
+
+	@Override public void onSend()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			copyConnectionInfo(handler);
+			handler.onSend();
+		}
+	}
+
+	/**
+	 * Asks every handler to load its cached content, and only skips the request if all of them could. Handlers
+	 * which loaded theirs are still given the response if the request is made.
+	 */
+	@Override public boolean onLoadCachedContent()
+	{
+		boolean loaded = true;
+
+		for (ResponseHandler<?> handler : handlers)
+		{
+			copyConnectionInfo(handler);
+
+			// every handler is asked, as handlers such as a bitmap cache start loading when they are
+			loaded &= handler.onLoadCachedContent();
+		}
+
+		if (loaded)
+		{
+			content = new ArrayList<>();
+			for (ResponseHandler<?> handler : handlers)
+			{
+				content.add(handler.getContent());
+
+				if (handler.getConnectionInfo().responseError != null && getConnectionInfo().responseError == null)
+				{
+					getConnectionInfo().responseError = handler.getConnectionInfo().responseError;
+				}
+			}
+		}
+
+		return loaded;
+	}
+
+	@Override public void onReceiveSource(BufferedSource source, final ClientTaskImpl client, final long totalLength) throws SocketTimeoutException, Exception
+	{
+		// the handlers report progress through the tee, not on their own
+		final ClientTaskImpl handlerClient = new ClientTaskImpl()
+		{
+			@Override public boolean isCancelled()
+			{
+				return client.isCancelled();
+			}
+
+			@Override public void cancel()
+			{
+				client.cancel();
+			}
+
+			@Override public void preExecute(){}
+
+			@Override public Object executeTask()
+			{
+				return null;
+			}
+
+			@Override public void postExecute(){}
+
+			@Override public void transferProgress(Packet packet){}
+		};
+
+		List<ResponseHandler<?>> chunkHandlers = new ArrayList<>();
+		pipes.clear();
+		pipesEnded = false;
+		pipedHandlers.clear();
+
+		for (final ResponseHandler<?> handler : handlers)
+		{
+			copyConnectionInfo(handler);
+
+			if (!handler.readsSource())
+			{
+				chunkHandlers.add(handler);
+				continue;
+			}
+
+			final BufferPipe pipe = new BufferPipe(PIPE_SIZE);
+			pipes.add(pipe);
+
+			pipedHandlers.add(pipeExecutor.submit(new Runnable()
+			{
+				@Override public void run()
+				{
+					Source pipeSource = pipe.source();
+
+					try
+					{
+						handler.onReceiveSource(Okio.buffer(pipeSource), handlerClient, totalLength);
+						handler.generateContent();
+					}
+					catch (Exception e)
+					{
+						handler.getConnectionInfo().responseError = e;
+						e.printStackTrace();
+					}
+					finally
+					{
+						handler.onReleaseBuffers();
+
+						try
+						{
+							pipeSource.close();
+						}
+						catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+			}));
+		}
+
+		byte[] chunk = new byte[BUFFER_SIZE];
+		Buffer pipeBuffer = new Buffer();
+
+		int len = 0;
+		long readCount = 0;
+		try
+		{
+			while ((len = source.read(chunk, 0, chunk.length)) > -1 && !client.isCancelled())
+			{
+				for (ResponseHandler<?> handler : chunkHandlers)
+				{
+					handler.onByteChunkReceived(chunk, len, readCount, totalLength);
+				}
+
+				for (BufferPipe pipe : pipes)
+				{
+					if (!pipe.isReaderClosed())
+					{
+						pipeBuffer.write(chunk, 0, len);
+						pipe.write(pipeBuffer, len);
+					}
+				}
+
+				readCount += len;
+
+				client.transferProgress(new Packet(readCount, totalLength, true));
+			}
+		}
+		catch (IOException e)
+		{
+			for (BufferPipe pipe : pipes)
+			{
+				pipe.fail(e);
+			}
+
+			pipesEnded = true;
+			throw e;
+		}
+
+		for (BufferPipe pipe : pipes)
+		{
+			if (client.isCancelled())
+			{
+				pipe.fail(new InterruptedIOException("Cancelled"));
+			}
+			else
+			{
+				pipe.close();
+			}
+		}
+
+		pipesEnded = true;
+
+		if (!client.isCancelled())
+		{
+			getConnectionInfo().responseLength = readCount;
+
+			for (ResponseHandler<?> handler : chunkHandlers)
+			{
+				handler.getConnectionInfo().responseLength = readCount;
+
+				// we fake the content length, because it can be -1
+				handler.onByteChunkReceived(null, readCount, readCount, readCount);
+			}
+
+			client.transferProgress(new Packet(readCount, totalLength, true));
+		}
+
+		source.close();
+	}
+
+	/**
+	 * Generates the content of every handler, waiting for the handlers reading on their own thread to finish
+	 */
+	@Override public void generateContent()
+	{
+		awaitPipedHandlers();
+
+		content = new ArrayList<>();
+		for (ResponseHandler<?> handler : handlers)
+		{
+			if (!handler.readsSource())
+			{
+				handler.generateContent();
+			}
+
+			content.add(handler.getContent());
+
+			if (handler.getConnectionInfo().responseError != null && getConnectionInfo().responseError == null)
+			{
+				getConnectionInfo().responseError = handler.getConnectionInfo().responseError;
+			}
+		}
+	}
+
+	/**
+	 * @return The content of each handler, in the order the handlers were given
+	 */
+	@Override public List<Object> getContent()
+	{
+		return content;
+	}
+
+	/**
+	 * Releases the buffers of the handlers given chunks by the tee. Handlers reading on their own thread release
+	 * theirs when they finish, so if reading the response stopped part way their pipes are failed and this waits
+	 * for them.
+	 */
+	@Override public void onReleaseBuffers()
+	{
+		if (!pipesEnded)
+		{
+			for (BufferPipe pipe : pipes)
+			{
+				pipe.fail(new InterruptedIOException("Released"));
+			}
+
+			pipesEnded = true;
+		}
+
+		awaitPipedHandlers();
+
+		for (ResponseHandler<?> handler : handlers)
+		{
+			if (!handler.readsSource())
+			{
+				handler.onReleaseBuffers();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the handlers reading on their own thread to finish
+	 */
+	private void awaitPipedHandlers()
+	{
+		for (Future<?> future : pipedHandlers)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException e)
+			{
+				getConnectionInfo().responseError = new InterruptedIOException();
+			}
+			catch (ExecutionException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override public void onDiscardContent()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onDiscardContent();
+		}
+	}
+
+	@Override public void onByteChunkReceivedProcessed(long totalProcessed, long totalLength)
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onByteChunkReceivedProcessed(totalProcessed, totalLength);
+		}
+	}
+
+	@Override public void onByteChunkSent(long chunkLength, long totalProcessed, long totalLength)
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onByteChunkSent(chunkLength, totalProcessed, totalLength);
+		}
+	}
+
+	@Override public boolean observeSentChunks()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			if (handler.observeSentChunks())
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	@Override public void onByteChunkSent(ByteString chunk, long totalProcessed, long totalLength)
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			if (handler.observeSentChunks())
+			{
+				handler.onByteChunkSent(chunk, totalProcessed, totalLength);
+			}
+		}
+	}
+
+	@Override public void onUncompressedBytesSent(long totalProcessed, long totalLength)
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onUncompressedBytesSent(totalProcessed, totalLength);
+		}
+	}
+
+	@Override public void onByteChunkSentProcessed(long totalProcessed, long totalLength)
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onByteChunkSentProcessed(totalProcessed, totalLength);
+		}
+	}
+
+	@Override public void beforeResponse()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			copyConnectionInfo(handler);
+			handler.beforeResponse();
+		}
+	}
+
+	@Override public void onSuccess()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onSuccess();
+		}
+	}
+
+	@Override public void onFailure()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onFailure();
+		}
+	}
+
+	@Override public void beforeFinish()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.beforeFinish();
+		}
+	}
+
+	@Override public void onFinish()
+	{
+		for (ResponseHandler<?> handler : handlers)
+		{
+			handler.onFinish();
+		}
+	}
+
+	/**
+	 * Gives the handler the details of the request and response, which handlers use to interpret the response
+	 */
+	private void copyConnectionInfo(ResponseHandler<?> handler)
+	{
+		ConnectionInfo from = getConnectionInfo();
+		ConnectionInfo to = handler.getConnectionInfo();
+
+		to.connectionUrl = from.connectionUrl;
+		to.requestMethod = from.requestMethod;
+		to.connectionTime = from.connectionTime;
+		to.connectionLength = from.connectionLength;
+		to.connectionUncompressedLength = from.connectionUncompressedLength;
+		to.responseWireLength = from.responseWireLength;
+		to.responseCode = from.responseCode;
+		to.responseTime = from.responseTime;
+		to.requestHeaders = from.requestHeaders;
+		to.responseHeaders = from.responseHeaders;
+	}
+}
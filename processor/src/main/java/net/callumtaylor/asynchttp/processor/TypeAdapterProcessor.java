@@ -0,0 +1,520 @@
+package net.callumtaylor.asynchttp.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a streaming Gson <code>TypeAdapter</code> for each class annotated with
+ * <code>net.callumtaylor.asynchttp.obj.GenerateTypeAdapter</code>.
+ * <p>
+ * The adapter for <code>com.example.Outer.Inner</code> is generated as <code>com.example.Outer$Inner$$TypeAdapter</code>,
+ * the binary name of the class with a suffix, which is the name <code>GeneratedTypeAdapterFactory</code> looks up at runtime. The model is
+ * created and its fields are read and written directly, and each value goes through the adapter Gson supplies for
+ * the field's type, so the output is the same as Gson's reflective adapter and adapters registered for any type,
+ * including strings and primitives, are still used.
+ * <p>
+ * The annotations are referenced by name so the processor has no dependency on the library or Gson.
+ */
+public class TypeAdapterProcessor extends AbstractProcessor
+{
+	private static final String ANNOTATION = "net.callumtaylor.asynchttp.obj.GenerateTypeAdapter";
+	private static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+	private static final String JSON_ADAPTER = "com.google.gson.annotations.JsonAdapter";
+	private static final String SUFFIX = "$$TypeAdapter";
+
+	@Override public Set<String> getSupportedAnnotationTypes()
+	{
+		return Collections.singleton(ANNOTATION);
+	}
+
+	@Override public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		for (TypeElement annotation : annotations)
+		{
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation))
+			{
+				if (element.getKind() != ElementKind.CLASS)
+				{
+					error(element, "@GenerateTypeAdapter can only be used on classes");
+					continue;
+				}
+
+				try
+				{
+					generate((TypeElement)element);
+				}
+				catch (IOException e)
+				{
+					error(element, "Could not write type adapter: " + e.getMessage());
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private void generate(TypeElement type) throws IOException
+	{
+		if (!isValid(type))
+		{
+			return;
+		}
+
+		List<VariableElement> fields = collectFields(type);
+		if (fields == null)
+		{
+			return;
+		}
+
+		String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String adapterName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1) + SUFFIX;
+		String modelName = type.getQualifiedName().toString();
+
+		StringBuilder code = new StringBuilder();
+		if (!packageName.isEmpty())
+		{
+			code.append("package ").append(packageName).append(";\n\n");
+		}
+
+		code.append("import com.google.gson.Gson;\n");
+		code.append("import com.google.gson.TypeAdapter;\n");
+		code.append("import com.google.gson.internal.bind.ReflectiveTypeAdapterFactory;\n");
+		code.append("import com.google.gson.reflect.TypeToken;\n");
+		code.append("import com.google.gson.stream.JsonReader;\n");
+		code.append("import com.google.gson.stream.JsonToken;\n");
+		code.append("import com.google.gson.stream.JsonWriter;\n\n");
+		code.append("import java.io.IOException;\n\n");
+		code.append("/**\n * Generated by TypeAdapterProcessor for {@link ").append(modelName).append("}. Do not edit\n */\n");
+		code.append("public final class ").append(adapterName).append(" extends TypeAdapter<").append(modelName).append(">\n{\n");
+		code.append("\tprivate final Gson gson;\n");
+
+		List<String> adapterTypes = new ArrayList<>();
+		for (VariableElement field : fields)
+		{
+			if (!adapterTypes.contains(field.asType().toString()))
+			{
+				adapterTypes.add(field.asType().toString());
+			}
+		}
+
+		for (int index = 0; index < adapterTypes.size(); index++)
+		{
+			code.append("\tprivate TypeAdapter<").append(boxed(adapterTypes.get(index))).append("> adapter").append(index).append(";\n");
+		}
+
+		code.append("\n\tpublic ").append(adapterName).append("(Gson gson)\n\t{\n\t\tthis.gson = gson;\n\t}\n");
+
+		// adapters are looked up lazily so self-referencing models do not recurse
+		for (int index = 0; index < adapterTypes.size(); index++)
+		{
+			String adapterType = adapterTypes.get(index);
+			String token = boxed(adapterType).equals(adapterType) ? "new TypeToken<" + adapterType + ">(){}" : adapterType + ".class";
+
+			code.append("\n\tprivate TypeAdapter<").append(boxed(adapterType)).append("> adapter").append(index).append("()\n\t{\n");
+			code.append("\t\tif (adapter").append(index).append(" == null)\n\t\t{\n");
+			code.append("\t\t\tadapter").append(index).append(" = gson.getAdapter(").append(token).append(");\n");
+			code.append("\t\t}\n\n\t\treturn adapter").append(index).append(";\n\t}\n");
+		}
+
+		writeMethod(code, type, fields, adapterTypes);
+		readMethod(code, modelName, fields, adapterTypes);
+
+		for (VariableElement field : fields)
+		{
+			if (usesRuntimeType(field.asType()))
+			{
+				runtimeTypeMethod(code);
+				break;
+			}
+		}
+
+		code.append("}\n");
+
+		String qualifiedAdapterName = packageName.isEmpty() ? adapterName : packageName + "." + adapterName;
+		JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedAdapterName, type);
+		Writer writer = file.openWriter();
+
+		try
+		{
+			writer.write(code.toString());
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	private void writeMethod(StringBuilder code, TypeElement type, List<VariableElement> fields, List<String> adapterTypes)
+	{
+		String modelName = type.getQualifiedName().toString();
+
+		code.append("\n\t@Override public void write(JsonWriter out, ").append(modelName).append(" value) throws IOException\n\t{\n");
+		code.append("\t\tif (value == null)\n\t\t{\n\t\t\tout.nullValue();\n\t\t\treturn;\n\t\t}\n\n");
+		code.append("\t\tout.beginObject();\n");
+
+		for (VariableElement field : fields)
+		{
+			String name = "value." + field.getSimpleName();
+			TypeMirror fieldType = field.asType();
+			String adapter = "adapter" + adapterTypes.indexOf(fieldType.toString()) + "()";
+			String indent = "\t\t";
+
+			code.append("\n");
+
+			// gson skips a field which refers to the object itself
+			boolean selfCheck = !fieldType.getKind().isPrimitive() && processingEnv.getTypeUtils().isAssignable(type.asType(), fieldType);
+			if (selfCheck)
+			{
+				code.append("\t\tif (").append(name).append(" != value)\n\t\t{\n");
+				indent = "\t\t\t";
+			}
+
+			code.append(indent).append("out.name(\"").append(escape(serializedNames(field).get(0))).append("\");\n");
+
+			if (usesRuntimeType(fieldType))
+			{
+				String declaredType = processingEnv.getTypeUtils().erasure(fieldType).toString();
+				code.append(indent).append("write(out, ").append(adapter).append(", ").append(declaredType).append(".class, ").append(name).append(");\n");
+			}
+			else
+			{
+				code.append(indent).append(adapter).append(".write(out, ").append(name).append(");\n");
+			}
+
+			if (selfCheck)
+			{
+				code.append("\t\t}\n");
+			}
+		}
+
+		code.append("\n\t\tout.endObject();\n\t}\n");
+	}
+
+	private void readMethod(StringBuilder code, String modelName, List<VariableElement> fields, List<String> adapterTypes)
+	{
+		code.append("\n\t@Override public ").append(modelName).append(" read(JsonReader in) throws IOException\n\t{\n");
+		code.append("\t\tif (in.peek() == JsonToken.NULL)\n\t\t{\n\t\t\tin.nextNull();\n\t\t\treturn null;\n\t\t}\n\n");
+		code.append("\t\t").append(modelName).append(" value = new ").append(modelName).append("();\n\n");
+		code.append("\t\tin.beginObject();\n");
+		code.append("\t\twhile (in.hasNext())\n\t\t{\n");
+		code.append("\t\t\tswitch (in.nextName())\n\t\t\t{\n");
+
+		for (VariableElement field : fields)
+		{
+			String name = "value." + field.getSimpleName();
+			TypeMirror fieldType = field.asType();
+			String adapter = "adapter" + adapterTypes.indexOf(fieldType.toString()) + "()";
+
+			for (String serializedName : serializedNames(field))
+			{
+				code.append("\t\t\t\tcase \"").append(escape(serializedName)).append("\":\n");
+			}
+
+			if (fieldType.getKind().isPrimitive())
+			{
+				// gson leaves a primitive field unchanged when its value is null
+				code.append("\t\t\t\t{\n");
+				code.append("\t\t\t\t\t").append(boxed(fieldType.toString())).append(" read = ").append(adapter).append(".read(in);\n");
+				code.append("\t\t\t\t\tif (read != null)\n\t\t\t\t\t{\n");
+				code.append("\t\t\t\t\t\t").append(name).append(" = read;\n");
+				code.append("\t\t\t\t\t}\n");
+				code.append("\t\t\t\t\tbreak;\n");
+				code.append("\t\t\t\t}\n\n");
+			}
+			else
+			{
+				code.append("\t\t\t\t\t").append(name).append(" = ").append(adapter).append(".read(in);\n");
+				code.append("\t\t\t\t\tbreak;\n\n");
+			}
+		}
+
+		code.append("\t\t\t\tdefault:\n\t\t\t\t\tin.skipValue();\n");
+		code.append("\t\t\t}\n\t\t}\n");
+		code.append("\t\tin.endObject();\n\n");
+		code.append("\t\treturn value;\n\t}\n");
+	}
+
+	/**
+	 * Writes the method which picks the adapter of a value's runtime type the same way gson's
+	 * <code>TypeAdapterRuntimeTypeWrapper</code> does
+	 */
+	private void runtimeTypeMethod(StringBuilder code)
+	{
+		code.append("\n\t@SuppressWarnings(\"unchecked\") private <T> void write(JsonWriter out, TypeAdapter<T> adapter, Class<?> declaredType, T value) throws IOException\n\t{\n");
+		code.append("\t\tif (value != null && value.getClass() != declaredType)\n\t\t{\n");
+		code.append("\t\t\tTypeAdapter<T> runtimeAdapter = (TypeAdapter<T>)gson.getAdapter(value.getClass());\n");
+		code.append("\t\t\tif (!(runtimeAdapter instanceof ReflectiveTypeAdapterFactory.Adapter) || adapter instanceof ReflectiveTypeAdapterFactory.Adapter)\n\t\t\t{\n");
+		code.append("\t\t\t\tadapter = runtimeAdapter;\n");
+		code.append("\t\t\t}\n\t\t}\n\n");
+		code.append("\t\tadapter.write(out, value);\n\t}\n");
+	}
+
+	/**
+	 * @return True if gson would write a value of the type with the adapter of its runtime type, which it does
+	 * for fields whose declared type is a non-generic class that can be subclassed, an array, or a primitive, which
+	 * is written with the adapter of its boxed type
+	 */
+	private boolean usesRuntimeType(TypeMirror type)
+	{
+		if (type.getKind() == TypeKind.ARRAY || type.getKind().isPrimitive())
+		{
+			return true;
+		}
+
+		if (type.getKind() != TypeKind.DECLARED || !((DeclaredType)type).getTypeArguments().isEmpty())
+		{
+			return false;
+		}
+
+		return !((DeclaredType)type).asElement().getModifiers().contains(Modifier.FINAL);
+	}
+
+	/**
+	 * @return The boxed type of a primitive type name, or the name itself
+	 */
+	private String boxed(String name)
+	{
+		switch (name)
+		{
+			case "boolean": return "Boolean";
+			case "byte": return "Byte";
+			case "short": return "Short";
+			case "int": return "Integer";
+			case "long": return "Long";
+			case "float": return "Float";
+			case "double": return "Double";
+			case "char": return "Character";
+			default: return name;
+		}
+	}
+
+	private boolean isValid(TypeElement type)
+	{
+		if (!type.getTypeParameters().isEmpty())
+		{
+			error(type, "@GenerateTypeAdapter classes can not be generic");
+			return false;
+		}
+
+		if (type.getModifiers().contains(Modifier.ABSTRACT))
+		{
+			error(type, "@GenerateTypeAdapter classes can not be abstract");
+			return false;
+		}
+
+		if (type.getEnclosingElement().getKind() != ElementKind.PACKAGE && !type.getModifiers().contains(Modifier.STATIC))
+		{
+			error(type, "@GenerateTypeAdapter inner classes must be static");
+			return false;
+		}
+
+		for (Element enclosing = type; enclosing.getKind() != ElementKind.PACKAGE; enclosing = enclosing.getEnclosingElement())
+		{
+			if (enclosing.getModifiers().contains(Modifier.PRIVATE))
+			{
+				error(type, "@GenerateTypeAdapter classes can not be private");
+				return false;
+			}
+		}
+
+		boolean hasConstructor = false;
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+		{
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+			{
+				hasConstructor = true;
+			}
+		}
+
+		if (!hasConstructor)
+		{
+			error(type, "@GenerateTypeAdapter classes need a non-private no-arg constructor");
+			return false;
+		}
+
+		if (hasAnnotation(type, JSON_ADAPTER))
+		{
+			error(type, "@GenerateTypeAdapter classes can not use @JsonAdapter");
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Collects the fields Gson would serialise, from the class and its superclasses
+	 *
+	 * @return The fields, or null if a field can not be accessed from the generated adapter
+	 */
+	private List<VariableElement> collectFields(TypeElement type)
+	{
+		List<VariableElement> fields = new ArrayList<>();
+		Map<String, VariableElement> names = new HashMap<>();
+		PackageElement typePackage = processingEnv.getElementUtils().getPackageOf(type);
+		boolean valid = true;
+
+		for (TypeElement current = type; current != null; current = superclassOf(current))
+		{
+			List<VariableElement> classFields = new ArrayList<>();
+			for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements()))
+			{
+				Set<Modifier> modifiers = field.getModifiers();
+				if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+				{
+					continue;
+				}
+
+				boolean samePackage = processingEnv.getElementUtils().getPackageOf(field).equals(typePackage);
+				if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) || (!samePackage && !modifiers.contains(Modifier.PUBLIC)))
+				{
+					error(field, "@GenerateTypeAdapter fields must be accessible from the generated adapter and not final");
+					valid = false;
+					continue;
+				}
+
+				if (field.asType().getKind() == TypeKind.TYPEVAR)
+				{
+					error(field, "@GenerateTypeAdapter fields can not use type variables");
+					valid = false;
+					continue;
+				}
+
+				if (hasAnnotation(field, JSON_ADAPTER))
+				{
+					error(field, "@GenerateTypeAdapter fields can not use @JsonAdapter");
+					valid = false;
+					continue;
+				}
+
+				// gson refuses classes where two fields share a name, so the adapter can not be generated either
+				for (String name : serializedNames(field))
+				{
+					VariableElement previous = names.put(name, field);
+					if (previous != null)
+					{
+						error(field, "@GenerateTypeAdapter class " + type.getQualifiedName() + " declares multiple JSON fields named " + name
+							+ " (" + previous.getEnclosingElement().getSimpleName() + "." + previous.getSimpleName() + ")");
+						valid = false;
+					}
+				}
+
+				classFields.add(field);
+			}
+
+			// subclass fields first, as gson does
+			fields.addAll(classFields);
+		}
+
+		return valid ? fields : null;
+	}
+
+	private TypeElement superclassOf(TypeElement type)
+	{
+		TypeMirror superclass = type.getSuperclass();
+		if (superclass.getKind() != TypeKind.DECLARED)
+		{
+			return null;
+		}
+
+		TypeElement element = (TypeElement)((DeclaredType)superclass).asElement();
+		if ("java.lang.Object".equals(element.getQualifiedName().toString()))
+		{
+			return null;
+		}
+
+		return element;
+	}
+
+	/**
+	 * @return The json name of the field followed by any alternate names
+	 */
+	private List<String> serializedNames(VariableElement field)
+	{
+		List<String> names = new ArrayList<>();
+
+		for (AnnotationMirror annotation : field.getAnnotationMirrors())
+		{
+			if (!SERIALIZED_NAME.equals(annotation.getAnnotationType().toString()))
+			{
+				continue;
+			}
+
+			for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues().entrySet())
+			{
+				String key = entry.getKey().getSimpleName().toString();
+				if ("value".equals(key))
+				{
+					names.add(0, (String)entry.getValue().getValue());
+				}
+				else if ("alternate".equals(key))
+				{
+					for (Object alternate : (List<?>)entry.getValue().getValue())
+					{
+						names.add((String)((AnnotationValue)alternate).getValue());
+					}
+				}
+			}
+		}
+
+		if (names.isEmpty())
+		{
+			names.add(field.getSimpleName().toString());
+		}
+
+		return names;
+	}
+
+	private boolean hasAnnotation(Element element, String annotationName)
+	{
+		for (AnnotationMirror annotation : element.getAnnotationMirrors())
+		{
+			if (annotationName.equals(annotation.getAnnotationType().toString()))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private String escape(String value)
+	{
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private void error(Element element, String message)
+	{
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
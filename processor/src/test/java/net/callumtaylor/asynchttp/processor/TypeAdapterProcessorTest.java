@@ -0,0 +1,317 @@
+package net.callumtaylor.asynchttp.processor;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles model classes with the processor and checks the adapters it generates
+ */
+public class TypeAdapterProcessorTest extends TestCase
+{
+	private static final String ANNOTATION = ""
+		+ "package net.callumtaylor.asynchttp.obj;\n"
+		+ "import java.lang.annotation.*;\n"
+		+ "@Retention(RetentionPolicy.RUNTIME) @Target(ElementType.TYPE)\n"
+		+ "public @interface GenerateTypeAdapter {}\n";
+
+	private File outputDirectory;
+	private DiagnosticCollector<JavaFileObject> diagnostics;
+
+	@Override protected void setUp() throws Exception
+	{
+		outputDirectory = File.createTempFile("processor", "");
+		outputDirectory.delete();
+		outputDirectory.mkdirs();
+	}
+
+	@Override protected void tearDown() throws Exception
+	{
+		delete(outputDirectory);
+	}
+
+	public void testNestedClassNamesDoNotCollide() throws Exception
+	{
+		boolean compiled = compile(
+			source("net.callumtaylor.asynchttp.obj.GenerateTypeAdapter", ANNOTATION),
+			source("com.example.Outer", ""
+				+ "package com.example;\n"
+				+ "public class Outer\n"
+				+ "{\n"
+				+ "	@net.callumtaylor.asynchttp.obj.GenerateTypeAdapter\n"
+				+ "	public static class Inner\n"
+				+ "	{\n"
+				+ "		public String name;\n"
+				+ "	}\n"
+				+ "}\n"),
+			source("com.example.Outer_Inner", ""
+				+ "package com.example;\n"
+				+ "@net.callumtaylor.asynchttp.obj.GenerateTypeAdapter\n"
+				+ "public class Outer_Inner\n"
+				+ "{\n"
+				+ "	public int count;\n"
+				+ "	@com.google.gson.annotations.SerializedName(value = \"label\", alternate = {\"title\"}) public String name;\n"
+				+ "}\n"));
+
+		Assert.assertTrue(diagnostics.getDiagnostics().toString(), compiled);
+
+		URLClassLoader classLoader = new URLClassLoader(new URL[]{outputDirectory.toURI().toURL()}, getClass().getClassLoader());
+		Gson gson = new Gson();
+
+		Object inner = adapter(classLoader, "com.example.Outer$Inner", gson).fromJson("{\"name\":\"nested\"}");
+		Assert.assertEquals("com.example.Outer$Inner", inner.getClass().getName());
+		Assert.assertEquals("nested", inner.getClass().getField("name").get(inner));
+
+		Object flat = adapter(classLoader, "com.example.Outer_Inner", gson).fromJson("{\"count\":3,\"title\":\"flat\"}");
+		Assert.assertEquals("com.example.Outer_Inner", flat.getClass().getName());
+		Assert.assertEquals(3, flat.getClass().getField("count").get(flat));
+		Assert.assertEquals("flat", flat.getClass().getField("name").get(flat));
+
+		Assert.assertEquals("{\"count\":3,\"label\":\"flat\"}", adapter(classLoader, "com.example.Outer_Inner", gson).toJson(flat));
+	}
+
+	public void testMatchesReflectiveAdapter() throws Exception
+	{
+		boolean compiled = compile(
+			source("net.callumtaylor.asynchttp.obj.GenerateTypeAdapter", ANNOTATION),
+			source("com.example.Base", ""
+				+ "package com.example;\n"
+				+ "public class Base\n"
+				+ "{\n"
+				+ "	public String name;\n"
+				+ "}\n"),
+			source("com.example.Derived", ""
+				+ "package com.example;\n"
+				+ "public class Derived extends Base\n"
+				+ "{\n"
+				+ "	public int extra;\n"
+				+ "}\n"),
+			source("com.example.Model", ""
+				+ "package com.example;\n"
+				+ "@net.callumtaylor.asynchttp.obj.GenerateTypeAdapter\n"
+				+ "public class Model\n"
+				+ "{\n"
+				+ "	public float smallFloat;\n"
+				+ "	public Float boxedFloat;\n"
+				+ "	public double smallDouble;\n"
+				+ "	public long big;\n"
+				+ "	public boolean flag;\n"
+				+ "	public char letter;\n"
+				+ "	public int missing = 7;\n"
+				+ "	public Integer nothing;\n"
+				+ "	public String text;\n"
+				+ "	public java.util.List<String> list;\n"
+				+ "	public int[] numbers;\n"
+				+ "	public Object any;\n"
+				+ "	public Base base;\n"
+				+ "	public Model self;\n"
+				+ "}\n"));
+
+		Assert.assertTrue(diagnostics.getDiagnostics().toString(), compiled);
+
+		URLClassLoader classLoader = new URLClassLoader(new URL[]{outputDirectory.toURI().toURL()}, getClass().getClassLoader());
+		Class<?> modelClass = Class.forName("com.example.Model", true, classLoader);
+		Gson reflective = new Gson();
+		Gson generated = generated(new GsonBuilder());
+		Assert.assertTrue(generated.getAdapter(modelClass).getClass().getName().endsWith("$$TypeAdapter"));
+
+		String json = "{\"smallFloat\":0.1,\"boxedFloat\":0.1,\"smallDouble\":0.1,\"big\":12345678901,\"flag\":true,\"letter\":\"x\","
+			+ "\"missing\":null,\"text\":true,\"list\":[\"a\",\"b\"],\"numbers\":[1,2],\"any\":{\"key\":1}}";
+
+		Object model = reflective.fromJson(json, modelClass);
+		Object generatedModel = generated.fromJson(json, modelClass);
+		Assert.assertEquals(reflective.toJson(model), reflective.toJson(generatedModel));
+		Assert.assertEquals("true", modelClass.getField("text").get(generatedModel));
+		Assert.assertEquals(7, modelClass.getField("missing").get(generatedModel));
+
+		Object derived = Class.forName("com.example.Derived", true, classLoader).newInstance();
+		derived.getClass().getField("name").set(derived, "derived");
+		derived.getClass().getField("extra").set(derived, 2);
+		modelClass.getField("base").set(model, derived);
+		modelClass.getField("self").set(model, model);
+
+		Assert.assertEquals(reflective.toJson(model), generated.toJson(model));
+		Assert.assertTrue(generated.toJson(model).contains("\"smallFloat\":0.1,"));
+		Assert.assertTrue(generated.toJson(model).contains("\"extra\":2"));
+
+		// adapters registered for strings and primitives are used, not bypassed
+		GsonBuilder builder = new GsonBuilder()
+			.serializeNulls()
+			.registerTypeAdapter(String.class, new TypeAdapter<String>()
+			{
+				@Override public void write(JsonWriter out, String value) throws IOException
+				{
+					out.value(value == null ? null : value.toUpperCase());
+				}
+
+				@Override public String read(JsonReader in) throws IOException
+				{
+					return (in.peek() == JsonToken.BOOLEAN ? String.valueOf(in.nextBoolean()) : in.nextString()).toUpperCase();
+				}
+			})
+			.registerTypeAdapter(long.class, new TypeAdapter<Long>()
+			{
+				@Override public void write(JsonWriter out, Long value) throws IOException
+				{
+					out.value(String.valueOf(value));
+				}
+
+				@Override public Long read(JsonReader in) throws IOException
+				{
+					return Long.parseLong(in.nextString());
+				}
+			});
+
+		reflective = builder.create();
+		generated = generated(builder);
+
+		Assert.assertEquals(reflective.toJson(model), generated.toJson(model));
+		Assert.assertTrue(generated.toJson(model).contains("\"text\":\"TRUE\""));
+		Assert.assertTrue(generated.toJson(model).contains("\"nothing\":null"));
+		Assert.assertEquals("A", ((List<?>)modelClass.getField("list").get(generated.fromJson(json, modelClass))).get(0));
+		Assert.assertEquals(12345678901L, modelClass.getField("big").get(generated.fromJson(json.replace("12345678901", "\"12345678901\""), modelClass)));
+	}
+
+	public void testDuplicateNameIsAnError() throws Exception
+	{
+		boolean compiled = compile(
+			source("net.callumtaylor.asynchttp.obj.GenerateTypeAdapter", ANNOTATION),
+			source("com.example.Parent", ""
+				+ "package com.example;\n"
+				+ "public class Parent\n"
+				+ "{\n"
+				+ "	@com.google.gson.annotations.SerializedName(\"id\") public String key;\n"
+				+ "}\n"),
+			source("com.example.Child", ""
+				+ "package com.example;\n"
+				+ "@net.callumtaylor.asynchttp.obj.GenerateTypeAdapter\n"
+				+ "public class Child extends Parent\n"
+				+ "{\n"
+				+ "	public String id;\n"
+				+ "}\n"));
+
+		Assert.assertFalse(compiled);
+
+		boolean reported = false;
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+		{
+			reported |= diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage(null).contains("multiple JSON fields named id");
+		}
+
+		Assert.assertTrue(diagnostics.getDiagnostics().toString(), reported);
+	}
+
+	public void testPrivateFieldIsAnError() throws Exception
+	{
+		boolean compiled = compile(
+			source("net.callumtaylor.asynchttp.obj.GenerateTypeAdapter", ANNOTATION),
+			source("com.example.Hidden", ""
+				+ "package com.example;\n"
+				+ "@net.callumtaylor.asynchttp.obj.GenerateTypeAdapter\n"
+				+ "public class Hidden\n"
+				+ "{\n"
+				+ "	private String name;\n"
+				+ "}\n"));
+
+		Assert.assertFalse(compiled);
+
+		boolean reported = false;
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+		{
+			reported |= diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage(null).contains("must be accessible");
+		}
+
+		Assert.assertTrue(diagnostics.getDiagnostics().toString(), reported);
+	}
+
+	/**
+	 * @return An instance from the builder which uses the generated adapters, as the library's factory does
+	 */
+	private Gson generated(GsonBuilder builder)
+	{
+		return builder.registerTypeAdapterFactory(new TypeAdapterFactory()
+		{
+			@SuppressWarnings("unchecked") @Override public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+			{
+				try
+				{
+					return (TypeAdapter<T>)adapter(type.getRawType().getClassLoader(), type.getRawType().getName(), gson);
+				}
+				catch (Exception e)
+				{
+					return null;
+				}
+			}
+		}).create();
+	}
+
+	@SuppressWarnings("unchecked") private TypeAdapter<Object> adapter(ClassLoader classLoader, String modelName, Gson gson) throws Exception
+	{
+		Class<?> adapterClass = Class.forName(modelName + "$$TypeAdapter", true, classLoader);
+		return (TypeAdapter<Object>)adapterClass.getConstructor(Gson.class).newInstance(gson);
+	}
+
+	private boolean compile(JavaFileObject... sources)
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		diagnostics = new DiagnosticCollector<>();
+
+		List<String> options = new ArrayList<>(Arrays.asList("-d", outputDirectory.getPath(), "-s", outputDirectory.getPath(),
+			"-classpath", System.getProperty("java.class.path")));
+
+		JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Arrays.asList(sources));
+		task.setProcessors(Arrays.asList(new TypeAdapterProcessor()));
+
+		return task.call();
+	}
+
+	private static JavaFileObject source(String className, final String code)
+	{
+		URI uri = URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+		return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE)
+		{
+			@Override public CharSequence getCharContent(boolean ignoreEncodingErrors)
+			{
+				return code;
+			}
+		};
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+}